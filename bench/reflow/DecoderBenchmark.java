@@ -0,0 +1,74 @@
+package reflow;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reply framing: the bare decoder, and the whole ReflowController receive path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecoderBenchmark {
+
+	private static final int PACKETS = 1000;
+
+	@Param({"1", "9", "256"})
+	public int chunk;
+
+	private byte[] stream;
+	private ByteBuffer buffer;
+	private PacketDecoder decoder;
+	private ReplayTransport transport;
+	private ReflowController controller;
+
+	private Blackhole bh;
+	private final PacketDecoder.PacketHandler handler = new PacketDecoder.PacketHandler() {
+		@Override
+		public void onPacket(byte[] packet, int length) {
+			bh.consume(packet[2]);
+		}
+	};
+
+	@Setup
+	public void setup() {
+		stream = ReplayTransport.record(PACKETS);
+		buffer = ByteBuffer.wrap(stream);
+		decoder = new PacketDecoder();
+		transport = new ReplayTransport(stream, chunk);
+		controller = new ReflowController(transport);
+		controller.setLogPackets(false);
+	}
+
+	@TearDown
+	public void tearDown() {
+		controller.disconnect();
+	}
+
+	@Benchmark
+	public void decode(Blackhole bh) {
+		this.bh = bh;
+		buffer.clear();
+		for (int pos = 0; pos < stream.length; pos += chunk) {
+			buffer.limit(Math.min(pos + chunk, stream.length));
+			decoder.decode(buffer, handler);
+		}
+	}
+
+	@Benchmark
+	public int controllerReceive() {
+		transport.replay();
+		return controller.getTemperature();
+	}
+}
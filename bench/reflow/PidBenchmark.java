@@ -0,0 +1,53 @@
+package reflow;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * PID iteration on a virtual clock, and the clock-free step with the filter and anti-windup enabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PidBenchmark {
+
+	private VirtualClock clock;
+	private PidController pid;
+	private PidController engine;
+	private double temp;
+
+	@Setup
+	public void setup() {
+		clock = new VirtualClock();
+		pid = new PidController(1, 0, 0.05, clock);
+		pid.start();
+		engine = new PidController(1, 0.01, 0.05, clock);
+		engine.setOptions(new PidController.Options(PidController.AntiWindup.BACK_CALCULATION, 10, 2, 0.001));
+		engine.start();
+		temp = 25;
+	}
+
+	@Benchmark
+	public int iteration() {
+		clock.advance(100);
+		temp += 0.01;
+		if (temp > 250)
+			temp = 25;
+		return pid.iteration(temp, 150);
+	}
+
+	@Benchmark
+	public int step() {
+		temp += 0.01;
+		if (temp > 250)
+			temp = 25;
+		return engine.step(150 - temp, 0.001, 0);
+	}
+}
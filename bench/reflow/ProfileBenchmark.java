@@ -0,0 +1,62 @@
+package reflow;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Profile interpolation over a small and a very large profile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProfileBenchmark {
+
+	@Param({"6", "10000"})
+	public int points;
+
+	private Profile profile;
+	private ProfileCurve.Cursor cursor;
+	private double max_time;
+	private double t;
+
+	@Setup
+	public void setup() {
+		double[] time = new double[points];
+		double[] temperature = new double[points];
+		for (int c = 0; c < points; c++) {
+			time[c] = (c + 1) * 300.0 / points;
+			temperature[c] = 25 + 215 * Math.sin(Math.PI * c / points);
+		}
+		profile = new Profile();
+		profile.setPoints(time, temperature);
+		cursor = profile.cursor();
+		max_time = profile.getMaxTime();
+		t = 0;
+	}
+
+	// Control loop pattern: time moves forward in small steps and wraps at the end
+	private double nextTime() {
+		t += 0.1;
+		if (t > max_time)
+			t = 0;
+		return t;
+	}
+
+	@Benchmark
+	public double binarySearch() {
+		return profile.getTemperature(nextTime());
+	}
+
+	@Benchmark
+	public double cursor() {
+		return cursor.getTemperature(nextTime());
+	}
+}
@@ -0,0 +1,86 @@
+package reflow;
+
+import java.util.Arrays;
+
+/**
+ * Transport that hands out a recorded byte stream, in chunks of the given size.
+ */
+public class ReplayTransport implements SerialTransport {
+
+	private final byte[] stream;
+	private final int chunk;
+	private int pos = 0;
+	private DataListener listener;
+
+	public ReplayTransport(byte[] stream, int chunk) {
+		this.stream = stream;
+		this.chunk = chunk;
+	}
+
+	/**
+	 * Deliver the whole recording to the controller.
+	 */
+	public void replay() {
+		pos = 0;
+		listener.dataAvailable();
+	}
+
+	@Override
+	public int bytesAvailable() {
+		return Math.min(chunk, stream.length - pos);
+	}
+
+	@Override
+	public int readBytes(byte[] buffer, int length) {
+		int n = Math.min(length, stream.length - pos);
+		System.arraycopy(stream, pos, buffer, 0, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int writeBytes(byte[] buffer, int length) {
+		return length;
+	}
+
+	@Override
+	public void setDataListener(DataListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public void reopen() {
+	}
+
+	/**
+	 * Temperature and duty cycle replies as the oven sends them during a run.
+	 */
+	public static byte[] record(int packets) {
+		byte[] stream = new byte[packets * PacketDecoder.MAX_PACKET_LENGTH];
+		int idx = 0;
+		for (int c = 0; c < packets; c++) {
+			stream[idx++] = ReflowController.HDR_BYTE_1;
+			stream[idx++] = ReflowController.HDR_BYTE_2;
+			if (c % 2 == 0) {
+				int temp = 25 + c % 220;
+				stream[idx++] = (byte)ReflowController.Command.CMD_READ_TEMPERATURE.ordinal();
+				stream[idx++] = (byte)c;
+				stream[idx++] = (byte)(c >> 8);
+				stream[idx++] = (byte)ReflowController.Ack.ACK_ACK.ordinal();
+				stream[idx++] = (byte)(temp & 0xFF);
+				stream[idx++] = (byte)(temp >> 8);
+				stream[idx++] = (byte)ReflowController.TempStatus.TS_OK.ordinal();
+			} else {
+				stream[idx++] = (byte)ReflowController.Command.CMD_SET_DUTY_CYCLE.ordinal();
+				stream[idx++] = (byte)c;
+				stream[idx++] = (byte)(c >> 8);
+				stream[idx++] = (byte)ReflowController.Ack.ACK_ACK.ordinal();
+			}
+		}
+		return Arrays.copyOf(stream, idx);
+	}
+}
@@ -0,0 +1,401 @@
+package reflow;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Properties;
+
+import reflow.ReflowController.Command;
+
+/**
+ * Identifies the oven with a relay experiment: heats up to the setpoint, then switches the duty cycle between
+ * high and low whenever the temperature leaves setpoint +- hysteresis, until the oscillation has settled.
+ * Everything is accumulated as samples arrive, nothing is stored:
+ * the dead time is the lag from a switch to the turn of the temperature, and the average heating and cooling
+ * rates from each turn to the next switch give gain and time constant of a first order plus dead time model,
+ * dT/dt = (gain * duty + ambient - T) / tau. Ambient is the first reading, so start with a cold oven.
+ * PI gains follow from the SIMC rules with tau_c = L.
+ */
+public class AutoTuner {
+
+	public enum Phase {HEATING, RELAY, DONE, FAILED}
+
+	private final double setpoint;
+	private final double hysteresis;
+	private final double high, low;
+	private final int cycles;
+	private double max_temp = 260;
+	private double timeout = 3600;
+
+	private Phase phase = Phase.HEATING;
+	private String error = null;
+	private boolean started = false;
+	private double start_time;
+	private double ambient;
+	private boolean relay_on = true;
+	private int duty;
+
+	// Current half cycle: extreme value and the first and last time it was seen
+	private double switch_time;
+	private double extreme;
+	private double extreme_first, extreme_last;
+	private boolean extremes_count = false;	// The half cycle after heat-up is still settling
+
+	private double last_off_time = Double.NaN;
+	private int peaks = 0, troughs = 0, periods = 0, lags = 0;
+	private double sum_peak = 0, sum_trough = 0, sum_period = 0, sum_lag = 0;
+	// Rate from the turn to the switch and the mean temperature over that stretch, heating and cooling
+	private double sum_rise = 0, sum_rise_temp = 0, sum_fall = 0, sum_fall_temp = 0;
+
+	private double gain, time_constant, dead_time;
+	private double ultimate_gain, ultimate_period;
+
+	/**
+	 * @param setpoint temperature to oscillate around, °C
+	 * @param hysteresis relay switches at setpoint +- hysteresis, °C
+	 * @param high duty cycle while heating, %
+	 * @param low duty cycle while cooling, %
+	 * @param cycles oscillation periods to average
+	 */
+	public AutoTuner(double setpoint, double hysteresis, double high, double low, int cycles) {
+		if (hysteresis <= 0 || high <= low || cycles < 1)
+			throw new IllegalArgumentException("Invalid auto-tune parameters");
+		this.setpoint = setpoint;
+		this.hysteresis = hysteresis;
+		this.high = high;
+		this.low = low;
+		this.cycles = cycles;
+		duty = (int)high;
+	}
+
+	/**
+	 * Abort with duty 0 above this temperature, °C.
+	 */
+	public void setMaxTemperature(double max_temp) {
+		this.max_temp = max_temp;
+	}
+
+	/**
+	 * Abort with duty 0 if the experiment takes longer, s.
+	 */
+	public void setTimeout(double timeout) {
+		this.timeout = timeout;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	public boolean isFinished() {
+		return phase == Phase.DONE || phase == Phase.FAILED;
+	}
+
+	/**
+	 * Why the experiment failed.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public int getDutyCycle() {
+		return duty;
+	}
+
+	/**
+	 * Oscillation periods measured so far.
+	 */
+	public int getCycles() {
+		return periods;
+	}
+
+	/**
+	 * Process a temperature sample and return the duty cycle to apply.
+	 * @param time s, any origin
+	 */
+	public int step(double time, double temperature) {
+		if (isFinished())
+			return duty;
+
+		if (!started) {
+			started = true;
+			start_time = time;
+			ambient = temperature;
+			switch_time = time;
+			startHalfCycle(time, temperature);
+		}
+		if (temperature > max_temp)
+			return fail("Temperature " + temperature + " above limit " + max_temp);
+		if (time - start_time > timeout)
+			return fail("No stable oscillation after " + timeout + " s");
+
+		track(time, temperature);
+		if (relay_on && temperature >= setpoint + hysteresis) {
+			finishHalfCycle(time, temperature);
+			if (phase == Phase.RELAY && !Double.isNaN(last_off_time)) {
+				sum_period += time - last_off_time;
+				periods++;
+			}
+			if (phase == Phase.HEATING)
+				phase = Phase.RELAY;
+			last_off_time = time;
+			relay_on = false;
+			startHalfCycle(time, temperature);
+		} else if (!relay_on && temperature <= setpoint - hysteresis) {
+			finishHalfCycle(time, temperature);
+			relay_on = true;
+			startHalfCycle(time, temperature);
+		}
+
+		if (periods >= cycles && peaks > 0 && troughs > 0) {
+			fit();
+			duty = 0;
+			return duty;
+		}
+		duty = (int)(relay_on ? high : low);
+		return duty;
+	}
+
+	private int fail(String reason) {
+		phase = Phase.FAILED;
+		error = reason;
+		duty = 0;
+		return duty;
+	}
+
+	private void startHalfCycle(double time, double temperature) {
+		switch_time = time;
+		extreme = temperature;
+		extreme_first = time;
+		extreme_last = time;
+	}
+
+	// Temperature keeps going the old way for the dead time after a switch, then turns
+	private void track(double time, double temperature) {
+		boolean beyond = relay_on ? temperature < extreme : temperature > extreme;
+		if (beyond) {
+			extreme = temperature;
+			extreme_first = time;
+			extreme_last = time;
+		} else if (temperature == extreme)
+			extreme_last = time;
+	}
+
+	private void finishHalfCycle(double time, double temperature) {
+		if (phase != Phase.RELAY)
+			return;
+
+		// Readings are whole degrees, take the middle of a flat top as the turning point
+		double turn = (extreme_first + extreme_last) / 2;
+		sum_lag += turn - switch_time;
+		lags++;
+		if (!extremes_count) {
+			extremes_count = relay_on;		// Overshoot after heat-up done
+			return;
+		}
+		if (time <= turn)
+			return;
+		double rate = Math.abs(temperature - extreme) / (time - turn);
+		double mean = (temperature + extreme) / 2;
+		if (relay_on) {
+			sum_trough += extreme;
+			sum_rise += rate;
+			sum_rise_temp += mean;
+			troughs++;
+		} else {
+			sum_peak += extreme;
+			sum_fall += rate;
+			sum_fall_temp += mean;
+			peaks++;
+		}
+	}
+
+	private void fit() {
+		double a = (sum_peak / peaks - sum_trough / troughs) / 2;
+		ultimate_period = sum_period / periods;
+		ultimate_gain = a > 0 ? 2 * (high - low) / (Math.PI * a) : Double.NaN;
+		dead_time = Math.max(0, sum_lag / lags);
+
+		// rise = g * high + q * (ambient - T_rise), fall = q * (T_fall - ambient) - g * low, g = gain / tau, q = 1 / tau
+		double rise = sum_rise / troughs, rise_temp = sum_rise_temp / troughs;
+		double fall = sum_fall / peaks, fall_temp = sum_fall_temp / peaks;
+		double det = high * (fall_temp - ambient) + low * (ambient - rise_temp);
+		double q = det != 0 ? (high * fall + low * rise) / det : 0;
+		double g = det != 0 ? (rise * (fall_temp - ambient) - fall * (ambient - rise_temp)) / det : 0;
+		if (!(q > 0) || !(g > 0)) {
+			fail("Heating and cooling rates don't fit a first order model");
+			return;
+		}
+		time_constant = 1 / q;
+		gain = g / q;
+		phase = Phase.DONE;
+	}
+
+	public double getGain() {
+		return gain;
+	}
+
+	public double getTimeConstant() {
+		return time_constant;
+	}
+
+	public double getDeadTime() {
+		return dead_time;
+	}
+
+	public double getAmbient() {
+		return ambient;
+	}
+
+	public double getUltimateGain() {
+		return ultimate_gain;
+	}
+
+	public double getUltimatePeriod() {
+		return ultimate_period;
+	}
+
+	public ThermalModel getModel() {
+		return new ThermalModel(gain, time_constant, dead_time, ambient);
+	}
+
+	/**
+	 * SIMC proportional gain, % per °C.
+	 */
+	public double getControllerGain() {
+		return time_constant / (gain * 2 * Math.max(dead_time, 1));
+	}
+
+	/**
+	 * SIMC integral time, s.
+	 */
+	public double getIntegralTime() {
+		return Math.min(time_constant, 8 * Math.max(dead_time, 1));
+	}
+
+	/**
+	 * Gains for PidController, which adds its output to the previous one every control period:
+	 * its P term acts as the integral and its D term as the proportional part of a PI controller.
+	 * @param period control period, s
+	 * @return p, i, d
+	 */
+	public double[] getPidGains(double period) {
+		double kc = getControllerGain();
+		return new double[] { kc * period / getIntegralTime(), 0, kc * period };
+	}
+
+	/**
+	 * Store the model and PID gains as model.* and pid.* keys of the configuration file.
+	 * The gains step the output by fractions of a percent, so pid.fractional is switched on with them.
+	 */
+	public void save(String config_file, double period) throws IOException {
+		Properties config = new Properties();
+		try {
+			FileInputStream input = new FileInputStream(config_file);
+			config.load(input);
+			input.close();
+		} catch (IOException e) {
+			// Start a new file
+		}
+
+		double[] pid = getPidGains(period);
+		config.setProperty("model.gain", String.format(Locale.ROOT, "%.4f", gain));
+		config.setProperty("model.tau", String.format(Locale.ROOT, "%.1f", time_constant));
+		config.setProperty("model.dead_time", String.format(Locale.ROOT, "%.1f", dead_time));
+		config.setProperty("model.ambient", String.format(Locale.ROOT, "%.1f", ambient));
+		config.setProperty("pid.p", String.format(Locale.ROOT, "%.4f", pid[0]));
+		config.setProperty("pid.i", String.format(Locale.ROOT, "%.4f", pid[1]));
+		config.setProperty("pid.d", String.format(Locale.ROOT, "%.4f", pid[2]));
+		config.setProperty("pid.fractional", "true");
+
+		FileOutputStream out = new FileOutputStream(config_file);
+		try {
+			config.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Drive the oven until the experiment finishes, one temperature reading per period. Leaves the oven off.
+	 * A VirtualClock is advanced instead of sleeping.
+	 */
+	public void run(ReflowController controller, Clock clock, long period_ms) throws InterruptedException {
+		try {
+			while (!isFinished()) {
+				if (clock instanceof VirtualClock)
+					((VirtualClock)clock).advance(period_ms);
+				else
+					Thread.sleep(period_ms);
+				try {
+					controller.send(Command.CMD_READ_TEMPERATURE).join();
+				} catch (RuntimeException e) {
+					fail("Can't read temperature: " + e.getMessage());
+					break;
+				}
+				controller.setDutyCycle(step(clock.currentTimeMillis() / 1000.0, controller.getTemperature()));
+			}
+		} finally {
+			controller.setDutyCycle(0);
+		}
+	}
+
+	public String toString() {
+		if (phase != Phase.DONE)
+			return phase + (error != null ? ": " + error : "");
+		return String.format("gain %.3f °C/%%, tau %.1f s, dead time %.1f s, ambient %.1f °C (Ku %.2f, Tu %.1f s)",
+				gain, time_constant, dead_time, ambient, ultimate_gain, ultimate_period);
+	}
+
+	/**
+	 * Usage: AutoTuner [config file]
+	 * autotune.setpoint, autotune.hysteresis, autotune.high, autotune.low, autotune.cycles, autotune.max_temp
+	 * control the experiment, controller.port=sim runs it against the simulated oven.
+	 */
+	public static void main(String[] args) throws Exception {
+		String config_file = args.length > 0 ? args[0] : "reflow.properties";
+		Properties config = new Properties();
+		try {
+			FileInputStream input = new FileInputStream(config_file);
+			config.load(input);
+			input.close();
+		} catch (Exception ex) {
+			System.err.println("Error loading configuration data.");
+		}
+
+		AutoTuner tuner = new AutoTuner(
+				Double.parseDouble(config.getProperty("autotune.setpoint", "150")),
+				Double.parseDouble(config.getProperty("autotune.hysteresis", "2")),
+				Double.parseDouble(config.getProperty("autotune.high", "100")),
+				Double.parseDouble(config.getProperty("autotune.low", "0")),
+				Integer.parseInt(config.getProperty("autotune.cycles", "4")));
+		tuner.setMaxTemperature(Double.parseDouble(config.getProperty("autotune.max_temp", "260")));
+
+		long period = Long.parseLong(config.getProperty("control.period", "1000"));
+		String port = config.getProperty("controller.port", "/dev/rfcomm1");
+		Clock clock;
+		ReflowController controller;
+		if (port.equals("sim")) {
+			clock = new VirtualClock();
+			controller = new ReflowController(new SimulatedOven(ThermalModel.fromConfig(config), clock));
+		} else {
+			clock = Clock.SYSTEM;
+			controller = new ReflowController(new JSerialCommTransport(port));
+		}
+		controller.setLogPackets(false);
+
+		try {
+			tuner.run(controller, clock, period);
+		} finally {
+			controller.disconnect();
+		}
+
+		System.out.println(tuner);
+		if (tuner.getPhase() != Phase.DONE)
+			System.exit(1);
+		double[] pid = tuner.getPidGains(period / 1000.0);
+		System.out.format("pid.p=%.4f pid.i=%.4f pid.d=%.4f\n", pid[0], pid[1], pid[2]);
+		tuner.save(config_file, period / 1000.0);
+		System.out.println("Saved to " + config_file);
+	}
+}
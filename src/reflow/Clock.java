@@ -0,0 +1,23 @@
+package reflow;
+
+/**
+ * Time source for the control loop, so runs can be driven by simulated time.
+ */
+public interface Clock {
+
+	long currentTimeMillis();
+
+	long nanoTime();
+
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+}
@@ -0,0 +1,181 @@
+package reflow;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the control step at a fixed rate on its own thread, using the latest temperature sample.
+ * Results are handed to the listener on the control thread, UI listeners must marshal them themselves.
+ */
+public class ControlLoop {
+
+	public interface Listener {
+		void onStep(double time, int temperature, double target, int power, boolean running);
+	}
+
+	private final ReflowController controller;
+	private final ReflowRun run;
+	private final long period_ms;
+	private final Clock clock;
+	private final ScheduledExecutorService executor;
+	private final boolean own_executor;
+
+	private volatile Listener listener;
+	private volatile ControlMetrics metrics;
+	private volatile TelemetryBus bus;
+	private ScheduledFuture<?> task;
+	private boolean stopped = true;		// Guarded by this, a tick already running must not write power after stop()
+	private long last_tick = 0;
+
+	public ControlLoop(ReflowController controller, ReflowRun run, long period_ms, Clock clock) {
+		this(controller, run, period_ms, clock, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reflow-control");
+				t.setDaemon(true);
+				t.setPriority(Thread.MAX_PRIORITY);
+				return t;
+			}
+		}), true);
+	}
+
+	public ControlLoop(ReflowController controller, ReflowRun run, long period_ms, Clock clock, ScheduledExecutorService executor) {
+		this(controller, run, period_ms, clock, executor, false);
+	}
+
+	private ControlLoop(ReflowController controller, ReflowRun run, long period_ms, Clock clock,
+			ScheduledExecutorService executor, boolean own_executor) {
+		if (period_ms <= 0)
+			throw new IllegalArgumentException("Control period must be positive");
+		this.controller = controller;
+		this.run = run;
+		this.period_ms = period_ms;
+		this.clock = clock;
+		this.executor = executor;
+		this.own_executor = own_executor;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void setMetrics(ControlMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Publish every step to the bus, the loop must be its only producer.
+	 */
+	public void setTelemetryBus(TelemetryBus bus) {
+		this.bus = bus;
+	}
+
+	public ReflowRun getRun() {
+		return run;
+	}
+
+	public long getPeriod() {
+		return period_ms;
+	}
+
+	public synchronized void start() {
+		if (task != null)
+			return;
+
+		last_tick = 0;
+		stopped = false;
+		run.start();
+		PollPolicy policy = controller.getPollPolicy();
+		if (policy != null) {
+			policy.runStarted(run.getProfile().getMaxTemperature());
+			controller.pollSooner();
+		}
+		task = executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, 0, period_ms, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Once this returns no tick writes power any more, so the caller can safely set the oven to 0.
+	 */
+	public synchronized void stop() {
+		if (task == null)
+			return;
+
+		task.cancel(false);
+		task = null;
+		stopped = true;
+		run.stop();
+		PollPolicy policy = controller.getPollPolicy();
+		if (policy != null)
+			policy.runStopped();
+		if (own_executor)
+			executor.shutdown();
+	}
+
+	public synchronized boolean isRunning() {
+		return task != null;
+	}
+
+	private void tick() {
+		ControlMetrics m = metrics;
+		long now = clock.nanoTime();
+		if (last_tick != 0 && m != null)
+			m.tick_jitter.record(Math.abs(now - last_tick - period_ms * 1000000L));
+		last_tick = now;
+
+		try {
+			long rx_time = controller.getTemperatureTime();
+			long t0 = System.nanoTime();
+			
+			int temp = controller.getTemperature();
+			boolean link_up = controller.getLinkHealth().isUp();
+			boolean running = link_up ? run.step(temp) : run.isRunning();		// Don't control on a stale sample
+			int power = running && link_up ? run.getPower() : 0;
+			long t1 = System.nanoTime();
+			synchronized (this) {
+				if (stopped)
+					return;		// Callers of stop() write 0 once it returns, don't overwrite that
+				controller.setDutyCycle(power);
+			}
+			long t2 = System.nanoTime();
+			
+			if (m != null) {
+				if (rx_time != 0) {
+					m.sample_age.record(t0 - rx_time);
+					m.reply_to_duty.record(t2 - rx_time);
+				}
+				m.control_step.record(t1 - t0);
+				m.duty_write.record(t2 - t1);
+			}
+
+			PollPolicy policy = controller.getPollPolicy();
+			if (policy != null && running && link_up) {
+				policy.update(run.getTarget(), run.getCurve().getSlope(run.getTime()), run.getTarget() - temp);
+				controller.pollSooner();
+			}
+
+			TelemetryBus b = bus;
+			if (b != null) {
+				ControlStrategy s = run.getStrategy();
+				b.publish(clock.currentTimeMillis(), run.getTime(), temp, run.getTarget(), power, controller.getTempStatus(),
+						s.getProportionalTerm(), s.getIntegralTerm(), s.getDerivativeTerm());
+			}
+
+			Listener l = listener;
+			if (l != null)
+				l.onStep(run.getTime(), temp, run.getTarget(), power, running);
+
+			if (!running)
+				stop();
+		} catch (RuntimeException e) {		// Exception would silently cancel the fixed rate task
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package reflow;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms along the path from temperature reply to duty cycle write, all in ns.
+ */
+public class ControlMetrics implements ControlMetricsMBean {
+
+	final Histogram link_rtt = new Histogram();			// Command sent -> reply received
+	final Histogram sample_age = new Histogram();		// Temperature reply received -> picked up by control step
+	final Histogram control_step = new Histogram();		// Profile lookup and PID iteration
+	final Histogram duty_write = new Histogram();		// setDutyCycle() call
+	final Histogram reply_to_duty = new Histogram();	// Temperature reply received -> duty cycle written
+	final Histogram ui_dispatch = new Histogram();		// asyncExec hop to the UI thread
+	final Histogram tick_jitter = new Histogram();		// Deviation of the control tick period from the nominal one
+
+	private ObjectName object_name;
+	private ScheduledExecutorService logger;
+
+	/**
+	 * Register with the platform MBean server as reflow:type=ControlMetrics,name=<name>.
+	 */
+	public void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			object_name = new ObjectName("reflow:type=ControlMetrics,name=" + ObjectName.quote(name));
+			if (server.isRegistered(object_name))
+				server.unregisterMBean(object_name);
+			server.registerMBean(this, object_name);
+		} catch (Exception e) {
+			System.err.println("Error registering control metrics MBean: " + e.getMessage());
+		}
+	}
+
+	public void unregister() {
+		if (object_name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(object_name);
+		} catch (Exception e) {
+		}
+		object_name = null;
+	}
+
+	/**
+	 * Print a summary line every period_s seconds.
+	 */
+	public synchronized void startLogging(long period_s) {
+		if (logger != null || period_s <= 0)
+			return;
+
+		logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reflow-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println(toString());
+			}
+		}, period_s, period_s, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopLogging() {
+		if (logger == null)
+			return;
+		logger.shutdown();
+		logger = null;
+	}
+
+	@Override
+	public String getLinkRoundTrip() {
+		return link_rtt.summary(1e6, "ms");
+	}
+
+	@Override
+	public String getSampleAge() {
+		return sample_age.summary(1e6, "ms");
+	}
+
+	@Override
+	public String getControlStep() {
+		return control_step.summary(1e6, "ms");
+	}
+
+	@Override
+	public String getDutyCycleWrite() {
+		return duty_write.summary(1e6, "ms");
+	}
+
+	@Override
+	public String getReplyToDutyCycle() {
+		return reply_to_duty.summary(1e6, "ms");
+	}
+
+	@Override
+	public String getUiDispatch() {
+		return ui_dispatch.summary(1e6, "ms");
+	}
+
+	@Override
+	public String getTickJitter() {
+		return tick_jitter.summary(1e6, "ms");
+	}
+
+	@Override
+	public long getReplyToDutyCycleP99Micros() {
+		return reply_to_duty.getPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getReplyToDutyCycleMaxMicros() {
+		return reply_to_duty.getMax() / 1000;
+	}
+
+	@Override
+	public long getUiDispatchP99Micros() {
+		return ui_dispatch.getPercentile(99) / 1000;
+	}
+
+	@Override
+	public void reset() {
+		link_rtt.reset();
+		sample_age.reset();
+		control_step.reset();
+		duty_write.reset();
+		reply_to_duty.reset();
+		ui_dispatch.reset();
+		tick_jitter.reset();
+	}
+
+	public void recordUiDispatch(long nanos) {
+		ui_dispatch.record(nanos);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Control p99/max ms: link %.3f/%.3f, sample age %.3f/%.3f, step %.3f/%.3f, " +
+				"write %.3f/%.3f, reply->duty %.3f/%.3f, ui %.3f/%.3f, jitter %.3f/%.3f",
+				p99(link_rtt), max(link_rtt), p99(sample_age), max(sample_age), p99(control_step), max(control_step),
+				p99(duty_write), max(duty_write), p99(reply_to_duty), max(reply_to_duty), p99(ui_dispatch), max(ui_dispatch),
+				p99(tick_jitter), max(tick_jitter));
+	}
+
+	private static double p99(Histogram h) {
+		return h.getPercentile(99) / 1e6;
+	}
+
+	private static double max(Histogram h) {
+		return h.getMax() / 1e6;
+	}
+}
@@ -0,0 +1,29 @@
+package reflow;
+
+/**
+ * JMX view of control loop latencies. Summaries are in milliseconds.
+ */
+public interface ControlMetricsMBean {
+
+	String getLinkRoundTrip();
+
+	String getSampleAge();
+
+	String getControlStep();
+
+	String getDutyCycleWrite();
+
+	String getReplyToDutyCycle();
+
+	String getUiDispatch();
+
+	String getTickJitter();
+
+	long getReplyToDutyCycleP99Micros();
+
+	long getReplyToDutyCycleMaxMicros();
+
+	long getUiDispatchP99Micros();
+
+	void reset();
+}
@@ -0,0 +1,74 @@
+package reflow;
+
+import java.util.Properties;
+
+/**
+ * Control law turning a temperature sample into the oven duty cycle. ReflowRun keeps the run time and
+ * error statistics, a strategy only keeps what its law needs. Implementations must not allocate in step().
+ */
+public interface ControlStrategy {
+
+	public enum Kind {
+		INCREMENTAL,	// Velocity form PID, PidController
+		POSITIONAL,		// Textbook PID, PositionalPidController
+		MPC;			// Model predictive control over the coming profile, ModelPredictiveController
+
+		public static Kind parse(String s) {
+			return valueOf(s.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Forget all state, called when a run starts.
+	 */
+	void reset();
+
+	/**
+	 * Duty cycle for the coming control period.
+	 * @param time run time, s
+	 * @param dt time since the previous step, s
+	 * @param setpoint target temperature now
+	 * @param feed_forward model based duty cycle, 0 if none
+	 * @return duty cycle 0..100
+	 */
+	int step(double time, double dt, double temperature, double setpoint, double feed_forward);
+
+	/**
+	 * Shortest dt step() acts on, s. Closer samples are left out by the caller so their interval adds to the next one.
+	 */
+	double getMinDt();
+
+	/**
+	 * Terms of the last step for telemetry, 0 where a strategy has no such term.
+	 */
+	double getProportionalTerm();
+
+	double getIntegralTerm();
+
+	double getDerivativeTerm();
+
+	/**
+	 * PID of the given kind with the gains and options.
+	 */
+	public static ControlStrategy pid(Kind kind, double p, double i, double d, PidController.Options options) {
+		if (kind == Kind.POSITIONAL) {
+			PositionalPidController pid = new PositionalPidController(p, i, d);
+			pid.setOptions(options);
+			return pid;
+		}
+		PidController pid = new PidController(p, i, d);
+		pid.setOptions(options);
+		return pid;
+	}
+
+	/**
+	 * Strategy chosen by control.strategy (incremental, positional, mpc). PIDs use the given gains and pid.* options,
+	 * MPC the model.* and mpc.* keys and the curve it is going to follow.
+	 */
+	public static ControlStrategy fromConfig(Properties config, double p, double i, double d, ProfileCurve curve) {
+		Kind kind = Kind.parse(config.getProperty("control.strategy", "incremental"));
+		if (kind == Kind.MPC)
+			return ModelPredictiveController.fromConfig(config, curve);
+		return pid(kind, p, i, d, PidController.Options.fromConfig(config));
+	}
+}
@@ -0,0 +1,70 @@
+package reflow;
+
+import org.eclipse.nebula.visualization.xygraph.dataprovider.AbstractDataProvider;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.ISample;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.Sample;
+import org.eclipse.nebula.visualization.xygraph.linearscale.Range;
+
+/**
+ * Chronological trace data for the graph. Samples may be appended from any thread, the trace only
+ * sees the decimated view built by update(), which must be called on the UI thread.
+ * History is kept in a TieredSeries, so memory is bounded and a view only reads the tier matching its zoom.
+ */
+public class DecimatedDataProvider extends AbstractDataProvider {
+
+	private final TieredSeries series;
+	private final TieredSeries.Points points = new TieredSeries.Points();
+	private final Decimator decimator = new Decimator();
+	private Range x_range = null, y_range = null;
+
+	public DecimatedDataProvider() {
+		this(new TieredSeries());
+	}
+
+	public DecimatedDataProvider(TieredSeries series) {
+		super(true);
+		this.series = series;
+	}
+
+	public synchronized void append(double x, double y) {
+		series.add(x, y);
+	}
+
+	public synchronized void clear() {
+		series.clear();
+	}
+
+	/**
+	 * Rebuild the view for a graph showing x0..x1 over the given number of pixel columns and notify the trace.
+	 */
+	public void update(double x0, double x1, int columns) {
+		synchronized (this) {
+			series.read(x0, x1, 4 * columns, points);
+			boolean empty = series.getCount() == 0;
+			x_range = empty ? null : new Range(series.getFirstTime(), series.getLastTime());
+			y_range = empty ? null : new Range(series.getMinValue(), series.getMaxValue());
+		}
+		decimator.decimate(points.x, points.y, points.size, x0, x1, columns);
+		fireDataChange();
+	}
+
+	@Override
+	public int getSize() {
+		return decimator.size();
+	}
+
+	@Override
+	public ISample getSample(int index) {
+		return new Sample(decimator.getX(index), decimator.getY(index));
+	}
+
+	@Override
+	protected void innerUpdate() {
+	}
+
+	@Override
+	protected void updateDataRange() {
+		xDataMinMax = x_range;
+		yDataMinMax = y_range;
+	}
+}
@@ -0,0 +1,84 @@
+package reflow;
+
+/**
+ * Reduces a chronological series to at most four points per pixel column: the first, lowest, highest
+ * and last sample of the column, in time order. The drawn line is the same as with all samples,
+ * but the number of points depends only on the graph width. Output arrays are reused between calls.
+ */
+public class Decimator {
+
+	private double[] out_x = new double[0];
+	private double[] out_y = new double[0];
+	private int size = 0;
+
+	/**
+	 * @param x sample times, ascending
+	 * @param y sample values
+	 * @param n number of samples
+	 * @param x0 time at the left edge of the graph
+	 * @param x1 time at the right edge of the graph
+	 * @param columns graph width in pixels
+	 * @return number of points produced
+	 */
+	public int decimate(double[] x, double[] y, int n, double x0, double x1, int columns) {
+		if (out_x.length < n) {
+			out_x = new double[Math.max(n, out_x.length * 2)];
+			out_y = new double[out_x.length];
+		}
+		size = 0;
+		if (n == 0)
+			return 0;
+		if (columns <= 0 || !(x1 > x0) || n <= 4 * columns) {
+			System.arraycopy(x, 0, out_x, 0, n);
+			System.arraycopy(y, 0, out_y, 0, n);
+			size = n;
+			return n;
+		}
+
+		double column_width = (x1 - x0) / columns;
+		int first = 0;
+		while (first < n) {
+			long column = (long)Math.floor((x[first] - x0) / column_width);
+			int min = first, max = first, last = first;
+			while (last + 1 < n && (long)Math.floor((x[last + 1] - x0) / column_width) == column) {
+				last++;
+				if (y[last] < y[min])
+					min = last;
+				if (y[last] > y[max])
+					max = last;
+			}
+
+			emit(x, y, first);
+			if (min < max) {
+				emit(x, y, min);
+				emit(x, y, max);
+			} else {
+				emit(x, y, max);
+				emit(x, y, min);
+			}
+			emit(x, y, last);
+			first = last + 1;
+		}
+		return size;
+	}
+
+	private void emit(double[] x, double[] y, int idx) {
+		if (size > 0 && out_x[size - 1] == x[idx] && out_y[size - 1] == y[idx])
+			return;
+		out_x[size] = x[idx];
+		out_y[size] = y[idx];
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double getX(int idx) {
+		return out_x[idx];
+	}
+
+	public double getY(int idx) {
+		return out_y[idx];
+	}
+}
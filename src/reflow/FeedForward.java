@@ -0,0 +1,59 @@
+package reflow;
+
+import java.util.Properties;
+
+/**
+ * Open loop part of the oven power: the duty cycle that makes a first order oven model follow the setpoint,
+ * duty = (r - ambient + tau * dr/dt) / gain, with r taken dead time ahead so the heater starts early enough.
+ * The PID controller only has to correct what the model gets wrong.
+ */
+public class FeedForward {
+
+	private final double gain;
+	private final double time_constant;
+	private final double ambient;
+	private final double lead;
+
+	/**
+	 * @param gain steady state rise, °C per % of duty cycle
+	 * @param time_constant s
+	 * @param ambient °C
+	 * @param lead how far ahead of the current time the setpoint is read, s
+	 */
+	public FeedForward(double gain, double time_constant, double ambient, double lead) {
+		if (gain <= 0 || time_constant < 0 || lead < 0)
+			throw new IllegalArgumentException("Invalid feed-forward parameters");
+		this.gain = gain;
+		this.time_constant = time_constant;
+		this.ambient = ambient;
+		this.lead = lead;
+	}
+
+	/**
+	 * Feed-forward for a fitted model, leading by its dead time.
+	 */
+	public FeedForward(ThermalModel model) {
+		this(model.getGain(), model.getTimeConstant(), model.getAmbient(), model.getDeadTime());
+	}
+
+	public double getLead() {
+		return lead;
+	}
+
+	/**
+	 * Duty cycle for the setpoint and its slope at time + lead, 0..100.
+	 */
+	public double power(double setpoint, double slope) {
+		double duty = (setpoint - ambient + time_constant * slope) / gain;
+		return Math.max(0, Math.min(100, duty));
+	}
+
+	/**
+	 * Feed-forward from the model.* keys when control.feed_forward is true, null otherwise.
+	 */
+	public static FeedForward fromConfig(Properties config) {
+		if (!Boolean.parseBoolean(config.getProperty("control.feed_forward", "false")))
+			return null;
+		return new FeedForward(ThermalModel.fromConfig(config));
+	}
+}
@@ -0,0 +1,107 @@
+package reflow;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of non-negative long values (HDR style).
+ * Every power of two range is split into 32 linear buckets, so values are kept within ~3%.
+ * record() never allocates and may be called from any thread.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value))
+			m = max.get();
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = total.get();
+		return n == 0 ? 0 : (double)sum.get() / n;
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given percentile (0..100).
+	 */
+	public long getPercentile(double percentile) {
+		long n = total.get();
+		if (n == 0)
+			return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int c = 0; c < counts.length(); c++) {
+			seen += counts.get(c);
+			if (seen >= rank)
+				return Math.min(upperBound(c), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int c = 0; c < counts.length(); c++)
+			counts.set(c, 0);
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * One line summary, values divided by scale, e.g. 1e6 and "ms" for nanosecond samples.
+	 */
+	public String summary(double scale, String unit) {
+		return String.format("n=%d mean=%.3f%s p50=%.3f%s p90=%.3f%s p99=%.3f%s max=%.3f%s",
+				getCount(), getMean() / scale, unit,
+				getPercentile(50) / scale, unit, getPercentile(90) / scale, unit,
+				getPercentile(99) / scale, unit, getMax() / scale, unit);
+	}
+
+	/**
+	 * Non-empty buckets, one per line, with counts.
+	 */
+	public String distribution(double scale, String unit) {
+		StringBuilder sb = new StringBuilder();
+		for (int c = 0; c < counts.length(); c++) {
+			long n = counts.get(c);
+			if (n > 0)
+				sb.append(String.format("%10.3f%s %d\n", upperBound(c) / scale, unit, n));
+		}
+		return sb.toString();
+	}
+
+	// Values below 2 * SUB_BUCKETS are exact, above that value >>> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS),
+	// so each power of two range gets all SUB_BUCKETS buckets and the ranges follow each other without gaps
+	static int index(long value) {
+		int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+		return shift * SUB_BUCKETS + (int)(value >>> shift);
+	}
+
+	static long upperBound(int index) {
+		int shift = Math.max(0, index / SUB_BUCKETS - 1);
+		long sub = index - shift * SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,71 @@
+package reflow;
+
+import java.io.IOException;
+
+import com.fazecast.jSerialComm.*;
+
+/**
+ * Serial transport backed by a jSerialComm port.
+ */
+public class JSerialCommTransport implements SerialTransport {
+
+	private final SerialPort port;
+	
+	public JSerialCommTransport(String port_name) throws IOException {
+		port = SerialPort.getCommPort(port_name);
+		port.setBaudRate(9600);
+		port.setFlowControl(SerialPort.FLOW_CONTROL_DISABLED);
+		port.setNumDataBits(8);
+		port.setNumStopBits(1);
+		port.setParity(SerialPort.NO_PARITY);
+		if (!port.openPort())
+			throw new IOException("Can't open serial port");
+	}
+
+	@Override
+	public int bytesAvailable() {
+		return port.bytesAvailable();
+	}
+
+	@Override
+	public int readBytes(byte[] buffer, int length) {
+		return port.readBytes(buffer, length);
+	}
+
+	@Override
+	public int writeBytes(byte[] buffer, int length) {
+		return port.writeBytes(buffer, length);
+	}
+
+	@Override
+	public void setDataListener(final DataListener listener) {
+		port.removeDataListener();
+		if (listener == null)
+			return;
+		
+		port.addDataListener(new SerialPortDataListener() {
+			   @Override
+			   public int getListeningEvents() { return SerialPort.LISTENING_EVENT_DATA_AVAILABLE; }
+			   @Override
+			   public void serialEvent(SerialPortEvent event)
+			   {
+			      if (event.getEventType() != SerialPort.LISTENING_EVENT_DATA_AVAILABLE)
+			         return;
+			      listener.dataAvailable();
+			   }
+		});
+	}
+
+	@Override
+	public void close() {
+		port.removeDataListener();
+		port.closePort();
+	}
+
+	@Override
+	public void reopen() throws IOException {
+		close();
+		if (!port.openPort())
+			throw new IOException("Can't open serial port " + port.getSystemPortName());
+	}
+}
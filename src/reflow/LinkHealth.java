@@ -0,0 +1,211 @@
+package reflow;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health of the link to the controller: reply rate, timed out commands, failed writes and framing errors,
+ * and whether replies stopped coming. The link is stale when nothing came back for the stale timeout after a request.
+ * ReflowController feeds it and acts on a stale link: it commands 0 % duty and reopens the port, on a thread
+ * of its own, with exponential backoff until replies come back.
+ * Times are System.nanoTime() values, settings in ms.
+ */
+public class LinkHealth {
+
+	public enum State {
+		UP,				// Replies arriving
+		STALE,			// No reply for longer than the stale timeout
+		RECONNECTING	// Reopening the port
+	}
+
+	private final long stale_timeout;
+	private final boolean auto_reconnect;
+	private final long backoff_min, backoff_max;
+
+	private volatile State state = State.UP;
+	private volatile long last_reply = System.nanoTime();
+	private volatile long waiting_since = 0;					// First request after the last reply, 0 if none
+	private volatile long down_since = 0;
+	private volatile long last_outage = 0;						// ns
+	private volatile double reply_interval = 0;					// Moving average, ns
+	private volatile long framing_errors = 0;
+	private final AtomicLong replies = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong write_errors = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+
+	public LinkHealth() {
+		this(3000, true, 1000, 30000);
+	}
+
+	/**
+	 * @param stale_timeout no reply for this long makes the link stale, ms
+	 * @param auto_reconnect reopen the port when the link goes stale
+	 * @param backoff_min first wait between reconnect attempts, doubled per attempt, ms
+	 * @param backoff_max longest wait between attempts, ms
+	 */
+	public LinkHealth(long stale_timeout, boolean auto_reconnect, long backoff_min, long backoff_max) {
+		if (stale_timeout <= 0 || backoff_min <= 0 || backoff_max < backoff_min)
+			throw new IllegalArgumentException("Invalid link health settings");
+		this.stale_timeout = stale_timeout;
+		this.auto_reconnect = auto_reconnect;
+		this.backoff_min = backoff_min;
+		this.backoff_max = backoff_max;
+	}
+
+	public long getStaleTimeout() {
+		return stale_timeout;
+	}
+
+	public boolean isAutoReconnect() {
+		return auto_reconnect;
+	}
+
+	/**
+	 * Wait before the next check or attempt after the given number of failed ones, ms.
+	 */
+	public long getBackoff(int attempt) {
+		return Math.min(backoff_max, backoff_min << Math.min(attempt, 20));
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isUp() {
+		return state == State.UP;
+	}
+
+	/**
+	 * A reply came in. Returns true if this brought the link back up.
+	 */
+	boolean onReply(long now) {
+		long previous = last_reply;
+		last_reply = now;
+		waiting_since = 0;
+		replies.incrementAndGet();
+		if (state == State.UP) {
+			double interval = now - previous;
+			reply_interval = reply_interval == 0 ? interval : reply_interval * 0.8 + interval * 0.2;
+			return false;
+		}
+		synchronized (this) {
+			if (state == State.UP)
+				return false;
+			last_outage = now - down_since;
+			state = State.UP;
+			return true;
+		}
+	}
+
+	void onTimeout() {
+		timeouts.incrementAndGet();
+	}
+
+	void onWriteError() {
+		write_errors.incrementAndGet();
+	}
+
+	void setFramingErrors(long framing_errors) {
+		this.framing_errors = framing_errors;
+	}
+
+	/**
+	 * A request went out and a reply is expected.
+	 */
+	void onRequest(long now) {
+		if (waiting_since == 0)
+			waiting_since = now;
+	}
+
+	/**
+	 * True if the link is up but nothing came back for longer than the stale timeout after a request.
+	 */
+	boolean isStale(long now) {
+		long since = waiting_since;
+		return state == State.UP && since != 0 && now - since > stale_timeout * 1000000L;
+	}
+
+	/**
+	 * Mark the link stale. Returns false if it already was down.
+	 */
+	synchronized boolean markStale(long now) {
+		if (state != State.UP)
+			return false;
+		state = State.STALE;
+		down_since = now;
+		reply_interval = 0;
+		return true;
+	}
+
+	synchronized void markReconnecting() {
+		if (state != State.UP) {
+			state = State.RECONNECTING;
+			reconnects.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Replies per second over the last few replies, 0 while the link is down.
+	 */
+	public double getReplyRate() {
+		double interval = reply_interval;
+		return state != State.UP || interval == 0 ? 0 : 1e9 / interval;
+	}
+
+	/**
+	 * ms since the last reply.
+	 */
+	public long getSilence() {
+		return (System.nanoTime() - last_reply) / 1000000L;
+	}
+
+	/**
+	 * How long the last outage lasted until replies came back, ms.
+	 */
+	public long getLastOutage() {
+		return last_outage / 1000000L;
+	}
+
+	public long getReplyCount() {
+		return replies.get();
+	}
+
+	/**
+	 * Commands that got no reply after all retries.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	public long getWriteErrorCount() {
+		return write_errors.get();
+	}
+
+	public long getFramingErrorCount() {
+		return framing_errors;
+	}
+
+	/**
+	 * Reconnect attempts made.
+	 */
+	public long getReconnectCount() {
+		return reconnects.get();
+	}
+
+	public String toString() {
+		return String.format("%s, %.1f replies/s, %d timeouts, %d write errors, %d framing errors, %d reconnects",
+				state, getReplyRate(), getTimeoutCount(), getWriteErrorCount(), getFramingErrorCount(), getReconnectCount());
+	}
+
+	/**
+	 * From link.stale_timeout (ms, default 3000), link.reconnect (true), link.backoff_min (1000) and link.backoff_max (30000).
+	 */
+	public static LinkHealth fromConfig(Properties config) {
+		return new LinkHealth(
+				Long.parseLong(config.getProperty("link.stale_timeout", "3000")),
+				Boolean.parseBoolean(config.getProperty("link.reconnect", "true")),
+				Long.parseLong(config.getProperty("link.backoff_min", "1000")),
+				Long.parseLong(config.getProperty("link.backoff_max", "30000")));
+	}
+}
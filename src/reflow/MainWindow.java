@@ -1,8 +1,11 @@
 package reflow;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Properties;
 
 import org.eclipse.swt.widgets.Display;
@@ -27,8 +30,8 @@ import org.eclipse.wb.swt.SWTResourceManager;
 import org.eclipse.swt.widgets.Scale;
 import org.eclipse.draw2d.LightweightSystem;
 import org.eclipse.nebula.visualization.xygraph.dataprovider.CircularBufferDataProvider;
-import org.eclipse.nebula.visualization.xygraph.dataprovider.ISample;
-import org.eclipse.nebula.visualization.xygraph.dataprovider.Sample;
+import org.eclipse.nebula.visualization.xygraph.figures.Axis;
+import org.eclipse.nebula.visualization.xygraph.figures.IAxisListener;
 import org.eclipse.nebula.visualization.xygraph.figures.IXYGraph;
 import org.eclipse.nebula.visualization.xygraph.figures.Trace;
 import org.eclipse.nebula.visualization.xygraph.figures.XYGraph;
@@ -39,16 +42,34 @@ import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Spinner;
 import org.eclipse.swt.widgets.ProgressBar;
+import org.eclipse.nebula.visualization.xygraph.linearscale.Range;
 
 public class MainWindow {
 
 	private final String config_file = "reflow.properties";
 	
-	private static ReflowController controller = null;
-	private static PidController pid = null;
+	private ReflowController controller = null;
+	private ReflowRun run = null;
+	private ControlLoop control_loop = null;
+	private TelemetryRecorder recorder = null;
+	private TelemetryBus.Subscription recorder_subscription = null;
+	private final TelemetryBus telemetry_bus = new TelemetryBus(1024);
+	private final ControlMetrics metrics = new ControlMetrics();
+	private final Clock clock = Clock.SYSTEM;
 	private Profile profile;
+	private final ProfileCache profiles = new ProfileCache(32);
 
-	private static Properties config;
+	// Latest control step, handed from the telemetry thread to the next graph frame
+	private final Object frame_lock = new Object();
+	private double frame_time;
+	private int frame_temp;
+	private double frame_target;
+	private int frame_power;
+	private long frame_queued = 0;
+	private long last_frame = 0;
+	private int frame_interval = 100;
+
+	private Properties config;
 	
 	protected Shell shell;
 	private Text txtPortName;
@@ -57,7 +78,7 @@ public class MainWindow {
 	private Scale scOven;
 	private Button btnStart;
 	private Button btnConnect;
-	private CircularBufferDataProvider temperatureDataProvider;
+	private final DecimatedDataProvider temperatureDataProvider = new DecimatedDataProvider();
 	private CircularBufferDataProvider profileDataProvider;	
 	private IXYGraph xyGraph;
 	private Trace profileTrace;
@@ -91,9 +112,12 @@ public class MainWindow {
 		try {
 			MainWindow window = new MainWindow();
 			window.open();
+			window.metrics.stopLogging();
+			window.metrics.unregister();
+			window.profiles.close();
 
-			if (controller != null) 
-				controller.disconnect();
+			if (window.controller != null) 
+				window.controller.disconnect();
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -108,6 +132,9 @@ public class MainWindow {
 		Display display = Display.getDefault();
 		createContents();
 		readConfig();
+		metrics.register("gui");
+		metrics.startLogging(Long.parseLong(config.getProperty("metrics.log_interval", "60")));
+		subscribeGraph();
 		shell.open();
 		shell.layout();
 		while (!shell.isDisposed()) {
@@ -134,6 +161,7 @@ public class MainWindow {
 		txtP.setText(config.getProperty("pid.p", "1"));
 		txtI.setText(config.getProperty("pid.i", "0"));
 		txtD.setText(config.getProperty("pid.d", "0"));
+		frame_interval = 1000 / Math.max(1, Integer.parseInt(config.getProperty("graph.fps", "10")));
 
 		load_profile(config.getProperty("profile.default", "lead-free.pfl"));
 	}
@@ -147,7 +175,8 @@ public class MainWindow {
 		config.setProperty("pid.p", txtP.getText());
 		config.setProperty("pid.i", txtI.getText());
 		config.setProperty("pid.d", txtD.getText());
-		config.setProperty("profile.default", profile.getFilename());
+		if (profile != null)
+			config.setProperty("profile.default", profile.getFilename());
 		
 		try {
 			FileOutputStream out = new FileOutputStream(config_file);
@@ -163,7 +192,25 @@ public class MainWindow {
 	 */
 	
 	private void stopPid() {
-		pid.stop();
+		if (control_loop != null) {
+			control_loop.stop();
+			control_loop = null;
+		}
+		if (recorder_subscription != null) {
+			recorder_subscription.close();
+			recorder_subscription = null;
+		}
+		if (recorder != null) {
+			try {
+				recorder.close();
+				if (recorder.getDroppedCount() > 0)
+					System.err.println("Telemetry dropped " + recorder.getDroppedCount() + " samples");
+			} catch (IOException e) {
+				System.err.println("Error closing telemetry file");
+			}
+			recorder = null;
+		}
+		run.stop();
 		setOven(0);
 		btnStart.setText("Start");
 		btnLoadProfile.setEnabled(true);
@@ -176,26 +223,97 @@ public class MainWindow {
 	protected void processTemperature() {
 		int temp = controller.getTemperature();
 		lblTemperature.setText(Integer.toString(temp) + "°C");
-		
-		if (pid == null || pid.getState() != PidController.State.CS_WORKING)
-			return;
-		
-		double time = pid.getTime();
-		if (time > profile.getMaxTime()) {
-			stopPid();
-			return;
+	}
+	
+	/********************************************
+	 * Show telemetry of running process on the UI thread.
+	 * Samples go straight into the trace data, the UI is refreshed at most graph.fps times a second.
+	 */
+	private void subscribeGraph() {
+		final Display display = Display.getDefault();
+		final Runnable frame = new Runnable() {
+			@Override
+			public void run() {
+				renderFrame();
+			}
+		};
+		final Runnable schedule = new Runnable() {
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				long queued;
+				synchronized (frame_lock) {
+					queued = frame_queued;
+				}
+				if (queued != 0)
+					metrics.recordUiDispatch(now - queued);		// The asyncExec hop only, not the frame throttle below
+				long delay = frame_interval - (now - last_frame) / 1000000;
+				if (delay <= 0)
+					renderFrame();
+				else
+					display.timerExec((int)delay, frame);
+			}
+		};
+		telemetry_bus.subscribe("gui", new TelemetryBus.Subscriber() {
+			@Override
+			public void onSample(TelemetrySample sample) {
+				temperatureDataProvider.append(sample.getRunTime(), sample.getMeasured());
+				synchronized (frame_lock) {
+					frame_time = sample.getRunTime();
+					frame_temp = sample.getMeasured();
+					frame_target = sample.getTarget();
+					frame_power = sample.getDutyCycle();
+					if (frame_queued != 0)
+						return;		// A frame is already on its way and will pick this sample up
+					frame_queued = System.nanoTime();
+				}
+				if (!display.isDisposed())
+					display.asyncExec(schedule);
+			}
+		});
+	}
+	
+	private void renderFrame() {
+		double time, target;
+		int temp, power;
+		synchronized (frame_lock) {
+			time = frame_time;
+			temp = frame_temp;
+			target = frame_target;
+			power = frame_power;
+			frame_queued = 0;
 		}
+		last_frame = System.nanoTime();
+		processControlStep(time, temp, target, power);
+	}
+	
+	/********************************************
+	 * Show result of a control loop step.
+	 */
+	protected void processControlStep(double time, int temp, double target, int power) {
+		if (control_loop == null)
+			return;
 		
-		double target = profile.getTemperature(time);
 		lblTarget.setText(Integer.toString((int)target) + "°C");
+		showOven(power);
 		
-		int pwr = pid.iteration(temp, target);
-		setOven(pwr);
-		
-	    temperatureDataProvider.addSample(new Sample(time, temp));
-	    xyGraph.performAutoScale();
+		Range x_range = xyGraph.getPrimaryXAxis().getRange();
+		Range y_range = xyGraph.getPrimaryYAxis().getRange();
+		if (time > x_range.getUpper() || temp > y_range.getUpper() || temp < y_range.getLower())
+			xyGraph.performAutoScale();
+		refreshTrace();
 	    
-	    progressBar.setSelection((int)(time * 100 / profile.getMaxTime()));
+		progressBar.setSelection((int)(control_loop.getRun().getProgress() * 100));
+	}
+	
+	/********************************************
+	 * Rebuild temperature trace for the visible time range
+	 */
+	private void refreshTrace() {
+		Axis x_axis = xyGraph.getPrimaryXAxis();
+		Range x_range = x_axis.getRange();
+		int columns = x_axis.getBounds().width;
+		temperatureDataProvider.update(x_range.getLower(), x_range.getUpper(), columns > 0 ? columns : 500);
 	}
 	
 	/********************************************
@@ -213,6 +331,11 @@ public class MainWindow {
 			    alert.open();
 			    return;
 			}
+			controller.setMetrics(metrics);
+			controller.setOutputInterval(Integer.parseInt(config.getProperty("output.min_interval", "0")));
+			controller.setBatchOutput(Boolean.parseBoolean(config.getProperty("output.batch", "true")));
+			controller.setPollPolicy(PollPolicy.fromConfig(config));
+			controller.setLinkHealth(LinkHealth.fromConfig(config));
 			controller.setCommandCallback(new CommandCallback() {
 				@Override
 				void onResponse(Command cmd) {
@@ -243,11 +366,11 @@ public class MainWindow {
 			scOven.setEnabled(true);
 			setOven(0);
 		} else {
-			controller.disconnect();
-			controller = null;
-			if (pid != null && pid.getState() == PidController.State.CS_WORKING) {
+			if (run != null && run.isRunning()) {
 				stopPid();
 			}
+			controller.disconnect();
+			controller = null;
 			btnConnect.setText("Connect");
 			btnStart.setEnabled(false);
 			scOven.setEnabled(false);
@@ -264,30 +387,74 @@ public class MainWindow {
 	 * Start / Stop reflow process
 	 */
 	protected void toggleReflow() {
-		if (pid != null && pid.getState() == PidController.State.CS_WORKING) {
+		if (run != null && run.isRunning()) {
 			stopPid();
 			return;
 		}
 		
-		pid = new PidController(
+		ProfileCurve curve = ProfileCurve.fromConfig(profile, config);
+		ControlStrategy strategy = ControlStrategy.fromConfig(config,
 					Double.parseDouble(txtP.getText()),
 					Double.parseDouble(txtI.getText()),
-					Double.parseDouble(txtD.getText())
+					Double.parseDouble(txtD.getText()),
+					curve
 				);
-		pid.start();
 		btnStart.setText("Stop");
 		btnLoadProfile.setEnabled(false);
 
-		if (temperatureDataProvider == null) {
-			temperatureDataProvider = new CircularBufferDataProvider(false);
-			temperatureDataProvider.setBufferSize(500);
-
+		temperatureDataProvider.clear();
+		if (temperatureTrace == null) {
 			temperatureTrace = new Trace("", xyGraph.getPrimaryXAxis(), xyGraph.getPrimaryYAxis(), temperatureDataProvider);
 			temperatureTrace.setPointStyle(PointStyle.NONE);
 
 			xyGraph.addTrace(temperatureTrace);
-		} else {
-			temperatureDataProvider.clearTrace();
+		}
+		
+		long period = Long.parseLong(config.getProperty("control.period", "1000"));
+		controller.setPollInterval((int)period);
+		run = new ReflowRun(curve, strategy, clock);
+		run.setFeedForward(FeedForward.fromConfig(config));
+		run.setLookahead(Double.parseDouble(config.getProperty("control.lookahead", "0")));
+		final ControlLoop loop = new ControlLoop(controller, run, period, clock);
+		loop.setMetrics(metrics);
+		loop.setTelemetryBus(telemetry_bus);
+		loop.setListener(new ControlLoop.Listener() {
+			@Override
+			public void onStep(double time, int temperature, double target, int power, boolean running) {
+				if (running)
+					return;
+				Display.getDefault().asyncExec(new Runnable() {
+					   @Override
+					   public void run() {
+						   if (control_loop == loop)
+							   stopPid();
+					   }
+				});
+			}
+		});
+		control_loop = loop;
+		recorder = openRecorder();
+		if (recorder != null)
+			recorder_subscription = telemetry_bus.subscribe("recorder", recorder);
+		control_loop.start();
+	}
+	
+	/********************************************
+	 * Create telemetry file for a new run
+	 */
+	private TelemetryRecorder openRecorder() {
+		File dir = new File(config.getProperty("telemetry.dir", "telemetry"));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			System.err.println("Error creating telemetry directory " + dir);
+			return null;
+		}
+		
+		String name = "run-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".rlog";
+		try {
+			return new TelemetryRecorder(new File(dir, name).getPath());
+		} catch (IOException e) {
+			System.err.println("Error creating telemetry file " + name);
+			return null;
 		}
 	}
 	
@@ -295,8 +462,7 @@ public class MainWindow {
 	 * Set oven power
 	 */
 	protected void setOven(int oven_pct) {
-		scOven.setSelection(oven_pct);
-        lblOven.setText(oven_pct + "%");
+		showOven(oven_pct);
         if (controller != null) {
       	  controller.setDutyCycle(oven_pct);
         }
@@ -304,12 +470,23 @@ public class MainWindow {
 	}
 
 	/********************************************
-	 * Load profile from disk
+	 * Show oven power without sending it to the controller
+	 */
+	protected void showOven(int oven_pct) {
+		scOven.setSelection(oven_pct);
+        lblOven.setText(oven_pct + "%");
+	}
+
+	/********************************************
+	 * Load profile from disk, or from the cache if unchanged
 	 */
 	protected void load_profile(String filename) {
-		profile = new Profile();
-		if (!profile.load(filename))
+		try {
+			profile = profiles.get(filename);
+		} catch (IOException e) {
+			System.err.println("Error loading profile " + filename + ": " + e.getMessage());
 			return;
+		}
 
 		if (profileDataProvider == null)
 			profileDataProvider = new CircularBufferDataProvider(false);
@@ -351,7 +528,7 @@ public class MainWindow {
 			@Override
 			public void mouseDown(MouseEvent e) {
 				   FileDialog dialog = new FileDialog(shell, SWT.OPEN);
-				   dialog.setFilterExtensions(new String [] {"*.pfl"});
+				   dialog.setFilterExtensions(new String [] {"*.pfl;*.rpf"});
 				   String file = dialog.open(); 
 				   if (file != null)
 					   load_profile(file);					
@@ -528,6 +705,16 @@ public class MainWindow {
 		xyGraph.getPrimaryYAxis().setTitle("Temperature");
 		xyGraph.getPrimaryXAxis().setShowMajorGrid(true);
 		xyGraph.getPrimaryYAxis().setShowMajorGrid(true);
+		xyGraph.getPrimaryXAxis().addListener(new IAxisListener() {
+			@Override
+			public void axisRevalidated(Axis axis) {
+			}
+
+			@Override
+			public void axisRangeChanged(Axis axis, Range old_range, Range new_range) {
+				refreshTrace();		// Zoom or rescale, pick the matching history tier
+			}
+		});
 		lws.setContents(xyGraph);
 
 	}
@@ -0,0 +1,204 @@
+package reflow;
+
+import java.util.Properties;
+
+/**
+ * Model predictive control on the first order plus dead time oven model. Every step it predicts the
+ * temperature one dead time ahead from the measurement and the duty cycles already sent, then picks
+ * the duty cycles of the next moves (each held for horizon / moves seconds) minimising
+ * sum (setpoint - predicted)^2 + move_weight * sum (duty change)^2 within 0..100 %,
+ * and applies the first one. The box constrained least squares is solved by coordinate descent,
+ * warm started from the last solution. The prediction restarts from the measured temperature on every step,
+ * which corrects for model errors.
+ */
+public class ModelPredictiveController implements ControlStrategy {
+
+	private static final int SWEEPS = 50;
+	private static final int HISTORY = 1024;
+
+	private final double gain, time_constant, dead_time, ambient;
+	private final double move_time;
+	private final double move_weight;
+	private final int moves;
+	private final ProfileCurve.Cursor cursor;
+
+	private final double a, b;			// z[k+1] = a * z[k] + b * u[k] + (1 - a) * ambient, one move apart
+	private final double[][] g;			// Effect of move j on the prediction k moves ahead
+	private final double[] h;			// Diagonal of the quadratic form
+	private final double[] u;			// Planned moves
+	private final double[] res;			// Predicted minus setpoint for the planned moves
+
+	// Duty cycles sent, still travelling through the dead time
+	private final double[] sent_time = new double[HISTORY];
+	private final double[] sent_duty = new double[HISTORY];
+	private int sent_head, sent_count;
+
+	private double now;
+	private int pwr;
+	private double predicted_error;
+
+	/**
+	 * @param horizon how far beyond the dead time the prediction reaches, s
+	 * @param moves number of duty cycle changes planned over the horizon
+	 * @param move_weight cost of a 1 % duty change relative to a 1 °C error
+	 */
+	public ModelPredictiveController(ThermalModel model, ProfileCurve curve, double horizon, int moves, double move_weight) {
+		if (!(horizon > 0) || moves < 1 || !(move_weight >= 0) || !(model.getGain() > 0))
+			throw new IllegalArgumentException("Invalid MPC parameters");
+		gain = model.getGain();
+		time_constant = model.getTimeConstant();
+		dead_time = model.getDeadTime();
+		ambient = model.getAmbient();
+		this.moves = moves;
+		this.move_weight = move_weight;
+		move_time = horizon / moves;
+		cursor = curve.cursor();
+
+		a = Math.exp(-move_time / time_constant);
+		b = gain * (1 - a);
+		g = new double[moves][moves];
+		h = new double[moves];
+		u = new double[moves];
+		res = new double[moves];
+		for (int k = 0; k < moves; k++)
+			for (int j = 0; j <= k; j++)
+				g[k][j] = Math.pow(a, k - j) * b;
+		for (int j = 0; j < moves; j++) {
+			for (int k = j; k < moves; k++)
+				h[j] += g[k][j] * g[k][j];
+			h[j] += move_weight * (j < moves - 1 ? 2 : 1);
+		}
+		reset();
+	}
+
+	public double getHorizon() {
+		return move_time * moves;
+	}
+
+	/**
+	 * Predicted minus setpoint one move after the dead time, for the plan of the last step.
+	 */
+	public double getPredictedError() {
+		return predicted_error;
+	}
+
+	@Override
+	public void reset() {
+		now = 0;
+		pwr = 0;
+		predicted_error = 0;
+		sent_head = 0;
+		sent_count = 0;
+		for (int j = 0; j < moves; j++)
+			u[j] = 0;
+	}
+
+	@Override
+	public int step(double time, double dt, double temperature, double setpoint, double feed_forward) {
+		if (dt > 0)
+			now += dt;
+
+		// Free response: moves from now on at 0 %, after the dead time
+		double z = predictDeadTime(temperature);
+		for (int k = 0; k < moves; k++) {
+			z = a * z + (1 - a) * ambient;
+			res[k] = z - cursor.getTemperature(time + dead_time + (k + 1) * move_time);
+		}
+		for (int j = 0; j < moves; j++)
+			for (int k = j; k < moves; k++)
+				res[k] += g[k][j] * u[j];
+
+		for (int sweep = 0; sweep < SWEEPS; sweep++) {
+			double change = 0;
+			for (int j = 0; j < moves; j++) {
+				double grad = 0;
+				for (int k = j; k < moves; k++)
+					grad += g[k][j] * res[k];
+				grad += move_weight * (u[j] - (j > 0 ? u[j - 1] : pwr));
+				if (j < moves - 1)
+					grad -= move_weight * (u[j + 1] - u[j]);
+				double next = u[j] - grad / h[j];
+				next = next < 0 ? 0 : (next > 100 ? 100 : next);
+				double delta = next - u[j];
+				if (delta == 0)
+					continue;
+				u[j] = next;
+				for (int k = j; k < moves; k++)
+					res[k] += g[k][j] * delta;
+				change = Math.max(change, Math.abs(delta));
+			}
+			if (change < 0.01)
+				break;
+		}
+
+		predicted_error = res[0];
+		pwr = (int)Math.round(u[0]);
+		record(now, pwr);
+		return pwr;
+	}
+
+	// Temperature one dead time from now, the duty cycles sent during the last dead time are still to act
+	private double predictDeadTime(double temperature) {
+		double y = temperature;
+		if (dead_time <= 0)
+			return y;
+		double from = now - dead_time;
+		int oldest = (sent_head - sent_count + HISTORY) % HISTORY;
+		double t = from;
+		double duty = sent_count == HISTORY ? sent_duty[oldest] : 0;	// Before the run the oven was off
+		for (int c = 0; c < sent_count; c++) {
+			int i = (oldest + c) % HISTORY;
+			if (sent_time[i] > t) {
+				y = settle(y, duty, Math.min(sent_time[i], now) - t);
+				t = sent_time[i];
+			}
+			duty = sent_duty[i];
+		}
+		if (now > t)
+			y = settle(y, duty, now - t);
+		return y;
+	}
+
+	private double settle(double y, double duty, double seconds) {
+		double target = ambient + gain * duty;
+		return target + (y - target) * Math.exp(-seconds / time_constant);
+	}
+
+	private void record(double time, double duty) {
+		sent_time[sent_head] = time;
+		sent_duty[sent_head] = duty;
+		sent_head = (sent_head + 1) % HISTORY;
+		if (sent_count < HISTORY)
+			sent_count++;
+	}
+
+	@Override
+	public double getProportionalTerm() {
+		return 0;
+	}
+
+	@Override
+	public double getIntegralTerm() {
+		return 0;
+	}
+
+	@Override
+	public double getDerivativeTerm() {
+		return 0;
+	}
+
+	@Override
+	public double getMinDt() {
+		return 0;
+	}
+
+	/**
+	 * MPC for the curve with the model.* oven model, mpc.horizon (s), mpc.moves and mpc.move_weight.
+	 */
+	public static ModelPredictiveController fromConfig(Properties config, ProfileCurve curve) {
+		return new ModelPredictiveController(ThermalModel.fromConfig(config), curve,
+				Double.parseDouble(config.getProperty("mpc.horizon", "60")),
+				Integer.parseInt(config.getProperty("mpc.moves", "6")),
+				Double.parseDouble(config.getProperty("mpc.move_weight", "0.05")));
+	}
+}
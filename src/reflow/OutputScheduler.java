@@ -0,0 +1,112 @@
+package reflow;
+
+/**
+ * Decides when duty cycle writes go out. A value equal to the one last written is not sent again,
+ * writes are at least the minimum interval apart and of the values offered in between only the latest is sent.
+ * Thread safe, times in ms.
+ */
+public class OutputScheduler {
+
+	private long min_interval;
+	private int written = -1;			// Last value sent, -1 when unknown
+	private int pending = -1;			// Waiting to be sent, -1 for none
+	private long last_write = Long.MIN_VALUE / 2;
+
+	private long writes = 0;
+	private long duplicates = 0;
+	private long coalesced = 0;
+
+	public OutputScheduler(long min_interval) {
+		this.min_interval = min_interval;
+	}
+
+	public synchronized long getMinInterval() {
+		return min_interval;
+	}
+
+	public synchronized void setMinInterval(long min_interval) {
+		this.min_interval = min_interval;
+	}
+
+	/**
+	 * Offer a new duty cycle. Returns true if it has to be written, false if the oven already has it.
+	 */
+	public synchronized boolean offer(int duty) {
+		if (duty == written) {
+			pending = -1;		// Back to what was written before, drop the change still waiting
+			duplicates++;
+			return false;
+		}
+		if (pending >= 0)
+			coalesced++;
+		pending = duty;
+		return true;
+	}
+
+	/**
+	 * ms until the pending value may be written, -1 if there is none.
+	 */
+	public synchronized long delay(long now) {
+		if (pending < 0)
+			return -1;
+		return Math.max(0, last_write + min_interval - now);
+	}
+
+	/**
+	 * The value to write now, -1 if there is none or the minimum interval hasn't passed yet.
+	 */
+	public synchronized int take(long now) {
+		if (pending < 0 || now < last_write + min_interval)
+			return -1;
+		written = pending;
+		pending = -1;
+		last_write = now;
+		writes++;
+		return written;
+	}
+
+	/**
+	 * A write wasn't acknowledged. Returns true if the value is pending again.
+	 */
+	public synchronized boolean failed(int duty) {
+		if (written != duty)
+			return false;
+		written = -1;
+		if (pending < 0)
+			pending = duty;
+		return true;
+	}
+
+	/**
+	 * Forget what the oven has, e.g. after reconnecting. The next offer is always written.
+	 */
+	public synchronized void reset() {
+		written = -1;
+		pending = -1;
+	}
+
+	/**
+	 * Last value written, -1 if unknown.
+	 */
+	public synchronized int getWritten() {
+		return written;
+	}
+
+	public synchronized long getWriteCount() {
+		return writes;
+	}
+
+	/**
+	 * Offers dropped because the oven already had the value.
+	 */
+	public synchronized long getDuplicateCount() {
+		return duplicates;
+	}
+
+	/**
+	 * Offers replaced by a newer one before they were written.
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+}
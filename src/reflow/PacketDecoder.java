@@ -0,0 +1,131 @@
+package reflow;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import reflow.ReflowController.Command;
+
+/**
+ * Frames awreflow2 reply packets out of a raw byte stream.
+ * A partially received packet is kept between calls, so input may be split at any byte.
+ */
+public class PacketDecoder {
+
+	public interface PacketHandler {
+		void onPacket(byte[] packet, int length);
+	}
+
+	static final int HEADER_LENGTH = 6;		// Header, command, sequence number and ack
+	static final int DATA_LENGTH = 3;
+	public static final int MAX_PACKET_LENGTH = HEADER_LENGTH + DATA_LENGTH;
+
+	private static final int NUM_COMMANDS = Command.values().length;
+	private static final int NUM_ACKS = ReflowController.Ack.values().length;
+
+	private enum ReadState { RS_HEADER1, RS_HEADER2, RS_COMMAND, RS_DATA};
+
+	private final byte[] packet_data = new byte[MAX_PACKET_LENGTH];
+	private int byte_idx = 0;
+	private ReadState read_state = ReadState.RS_HEADER1;
+
+	private long packets = 0;
+	private long framing_errors = 0;
+
+	/**
+	 * Consume all remaining bytes of the buffer, passing every complete packet to the handler.
+	 * The packet array is reused, handler must copy anything it wants to keep.
+	 */
+	public void decode(ByteBuffer buf, PacketHandler handler) {
+		while (buf.hasRemaining()) {
+			switch(read_state) {
+				case RS_HEADER1:
+					if (buf.get() == ReflowController.HDR_BYTE_1) {
+						packet_data[0] = ReflowController.HDR_BYTE_1;
+						byte_idx = 1;
+						read_state = ReadState.RS_HEADER2;
+					}
+				break;
+				case RS_HEADER2:
+					byte b = buf.get();
+					if (b == ReflowController.HDR_BYTE_2) {
+						packet_data[1] = b;
+						byte_idx = 2;
+						read_state = ReadState.RS_COMMAND;
+					} else if (b != ReflowController.HDR_BYTE_1) {
+						framing_errors++;
+						reset();
+					}
+				break;
+				case RS_COMMAND:
+					if (fill(buf, HEADER_LENGTH)) {
+						if (!isValidHeader()) {
+							framing_errors++;
+							reset();
+						} else if (hasData(packet_data[2])) {
+							read_state = ReadState.RS_DATA;
+						} else {
+							deliver(handler);
+						}
+					}
+				break;
+				case RS_DATA:
+					if (fill(buf, MAX_PACKET_LENGTH))
+						deliver(handler);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Decode the buffer into a list of freshly allocated packets.
+	 */
+	public List<byte[]> decode(ByteBuffer buf) {
+		final List<byte[]> frames = new ArrayList<byte[]>();
+		decode(buf, new PacketHandler() {
+			@Override
+			public void onPacket(byte[] packet, int length) {
+				frames.add(Arrays.copyOf(packet, length));
+			}
+		});
+		return frames;
+	}
+
+	public void reset() {
+		byte_idx = 0;
+		read_state = ReadState.RS_HEADER1;
+	}
+
+	public long getPacketCount() {
+		return packets;
+	}
+
+	public long getFramingErrors() {
+		return framing_errors;
+	}
+
+	static boolean hasData(byte cmd) {
+		return cmd == Command.CMD_READ_TEMPERATURE.ordinal() || cmd == Command.CMD_READ_SETTINGS.ordinal();
+	}
+
+	private boolean isValidHeader() {
+		return packet_data[2] >= 0 && packet_data[2] < NUM_COMMANDS &&
+				packet_data[5] >= 0 && packet_data[5] < NUM_ACKS;
+	}
+
+	// Copy as many bytes as available, up to the given packet length
+	private boolean fill(ByteBuffer buf, int length) {
+		int n = Math.min(length - byte_idx, buf.remaining());
+		buf.get(packet_data, byte_idx, n);
+		byte_idx += n;
+		return byte_idx == length;
+	}
+
+	private void deliver(PacketHandler handler) {
+		int length = byte_idx;
+		reset();
+		packets++;
+		handler.onPacket(packet_data, length);
+	}
+}
@@ -1,30 +1,151 @@
 package reflow;
 
-public class PidController {
+import java.util.Properties;
+
+/**
+ * Velocity form PID: every step adds Kp*e + Ki*integral(e) + Kd*de/dt to the previous output.
+ * Can also keep its own run time and error statistics through start() and iteration().
+ */
+public class PidController implements ControlStrategy {
 	
 	public enum State {CS_IDLE, CS_WORKING}
 	
+	public enum AntiWindup {
+		NONE,				// Only the accumulated output is limited to 0..100
+		CLAMP,				// Stop integrating while the output is saturated in the direction of the error
+		BACK_CALCULATION;	// Bleed the integral off by the saturation excess, with the tracking time constant
+
+		public static AntiWindup parse(String s) {
+			return valueOf(s.trim().toUpperCase());
+		}
+	}
+	
+	/**
+	 * Engine settings besides the gains.
+	 */
+	public static class Options {
+		public static final Options DEFAULT = new Options(AntiWindup.CLAMP, 10, 0, 0.001);
+		
+		private final AntiWindup anti_windup;
+		private final double tracking_time;
+		private final double derivative_filter;
+		private final double min_dt;
+		private final boolean fractional;
+		
+		public Options(AntiWindup anti_windup, double tracking_time, double derivative_filter, double min_dt) {
+			this(anti_windup, tracking_time, derivative_filter, min_dt, false);
+		}
+		
+		/**
+		 * @param tracking_time back calculation time constant, s
+		 * @param derivative_filter time constant of the first order filter on the derivative, s, 0 for none
+		 * @param min_dt samples closer than this to the previous one are ignored, s
+		 * @param fractional keep the accumulated output fractional instead of truncating every step to whole percent,
+		 *                   so increments below 1 % add up
+		 */
+		public Options(AntiWindup anti_windup, double tracking_time, double derivative_filter, double min_dt,
+				boolean fractional) {
+			if (!(tracking_time > 0) || !(derivative_filter >= 0) || !(min_dt > 0))
+				throw new IllegalArgumentException("Invalid PID options");
+			this.anti_windup = anti_windup;
+			this.tracking_time = tracking_time;
+			this.derivative_filter = derivative_filter;
+			this.min_dt = min_dt;
+			this.fractional = fractional;
+		}
+		
+		public AntiWindup getAntiWindup() {
+			return anti_windup;
+		}
+		
+		public double getTrackingTime() {
+			return tracking_time;
+		}
+		
+		public double getDerivativeFilter() {
+			return derivative_filter;
+		}
+		
+		public double getMinDt() {
+			return min_dt;
+		}
+		
+		public boolean isFractional() {
+			return fractional;
+		}
+		
+		/**
+		 * pid.anti_windup (none, clamp, back_calculation), pid.tracking_time, pid.d_filter and pid.min_dt, s,
+		 * and pid.fractional (default false).
+		 */
+		public static Options fromConfig(Properties config) {
+			return new Options(AntiWindup.parse(config.getProperty("pid.anti_windup", "clamp")),
+					Double.parseDouble(config.getProperty("pid.tracking_time", "10")),
+					Double.parseDouble(config.getProperty("pid.d_filter", "0")),
+					Double.parseDouble(config.getProperty("pid.min_dt", "0.001")),
+					Boolean.parseBoolean(config.getProperty("pid.fractional", "false")));
+		}
+	}
+	
+	private final Clock clock;
 	private long start_time;
 	private State state;
 	
 	double Kp, Ki, Kd;
 	
+	private Options options = Options.DEFAULT;
+	private AntiWindup anti_windup = options.anti_windup;
+	private double tracking_time = options.tracking_time;
+	private double d_filter = options.derivative_filter;
+	private double min_dt = options.min_dt;
+	private boolean fractional = options.fractional;
+	
 	long prev_time;
-	int prev_pwr;
+	double prev_pwr;			// Accumulated output, whole percent unless fractional
 	double prev_e;				// Previous value of error;
 	double int_e;				// Integral of error
+	double de_f;				// Filtered derivative of error
+	int pwr;					// Output of the last iteration
+	
+	double p_term, i_term, d_term;	// Terms of the last iteration
+	double f_term;					// Feed-forward of the last iteration
 	
 	double e_max;
 	double e_min;
 	double e_sq_int;
 	
 	public PidController(double p, double i, double d) {
+		this(p, i, d, Clock.SYSTEM);
+	}
+	
+	public PidController(double p, double i, double d, Clock clock) {
+		this.clock = clock;
 		Kp = p;
 		Ki = i;
 		Kd = d;
 		state = State.CS_IDLE;
 	}
 	
+	public Clock getClock() {
+		return clock;
+	}
+	
+	public Options getOptions() {
+		return options;
+	}
+	
+	/**
+	 * Takes effect with the next iteration.
+	 */
+	public void setOptions(Options options) {
+		this.options = options;
+		anti_windup = options.anti_windup;
+		tracking_time = options.tracking_time;
+		d_filter = options.derivative_filter;
+		min_dt = options.min_dt;
+		fractional = options.fractional;
+	}
+	
 	public State getState() {
 		return state;
 	}
@@ -34,11 +155,22 @@ public class PidController {
 			return;
 		
 		state = State.CS_WORKING;
-		start_time = System.currentTimeMillis();
+		start_time = clock.currentTimeMillis();
 		prev_time = start_time;
+		reset();
+	}
+	
+	@Override
+	public void reset() {
 		prev_pwr = 0;
 		int_e = 0;
 		prev_e = 0;
+		de_f = 0;
+		pwr = 0;
+		p_term = 0;
+		i_term = 0;
+		d_term = 0;
+		f_term = 0;
 		e_max = 0;
 		e_min = 0;
 		e_sq_int = 0;
@@ -55,7 +187,7 @@ public class PidController {
 		if (state != State.CS_WORKING) 
 			return 0;
 
-		return (System.currentTimeMillis() - start_time) / 1000;
+		return (clock.currentTimeMillis() - start_time) / 1000;
 	}
 	
 	public double getMinError() {
@@ -70,15 +202,70 @@ public class PidController {
 		return e_sq_int;
 	}
 	
+	@Override
+	public double getProportionalTerm() {
+		return p_term;
+	}
+
+	@Override
+	public double getIntegralTerm() {
+		return i_term;
+	}
+
+	@Override
+	public double getDerivativeTerm() {
+		return d_term;
+	}
+	
+	@Override
+	public double getMinDt() {
+		return min_dt;
+	}
+	
+	public double getFeedForwardTerm() {
+		return f_term;
+	}
+	
 	public int iteration(double current_temp, double profile_temp) {
-		double e = profile_temp - current_temp;
-		long curr_time = System.currentTimeMillis();
+		return iteration(current_temp, profile_temp, 0);
+	}
+	
+	/**
+	 * Feed-forward is added on top of the accumulated PID output, which then only holds the correction.
+	 */
+	public int iteration(double current_temp, double profile_temp, double feed_forward) {
+		long curr_time = clock.currentTimeMillis();
 		double dt = (double)(curr_time - prev_time) / 1000.0;
+		if (dt >= min_dt)
+			prev_time = curr_time;
+		return step(profile_temp - current_temp, dt, feed_forward);
+	}
+	
+	@Override
+	public int step(double time, double dt, double temperature, double setpoint, double feed_forward) {
+		return step(setpoint - temperature, dt, feed_forward);
+	}
+	
+	/**
+	 * One controller step for error e (setpoint - temperature) after dt seconds, without the clock.
+	 * Only touches primitive fields, so it can run at any rate from a simulation.
+	 * A step closer than the minimum dt to the previous one changes nothing and returns the last output.
+	 */
+	public int step(double e, double dt, double feed_forward) {
+		if (!(dt >= min_dt))
+			return pwr;
 		
-		int_e += (prev_e + e) / 2 * dt;
+		double int_next = int_e + (prev_e + e) / 2 * dt;
 		double de = (e - prev_e) / dt;
+		if (d_filter > 0) {
+			de_f += (de - de_f) * dt / (d_filter + dt);
+			de = de_f;
+		}
 		
-		double u = Kp * e + Ki * int_e + Kd * de;
+		p_term = Kp * e;
+		i_term = Ki * int_next;
+		d_term = Kd * de;
+		double u = p_term + i_term + d_term;
 		
 		if (e > 0 && e_max < e)
 			e_max = e;
@@ -89,16 +276,32 @@ public class PidController {
 		e_sq_int += ((e * e) + (prev_e * prev_e)) / 2 * dt;
 
 		prev_e = e;
-		prev_time = curr_time;
 		prev_pwr += u;
+		if (!fractional)
+			prev_pwr = (int)prev_pwr;
 		
-		if (prev_pwr < 0)
-			prev_pwr = 0;
+		int ff = (int)Math.round(feed_forward);
+		double out = prev_pwr + ff;
+		double sat = out < 0 ? 0 : (out > 100 ? 100 : out);
 		
-		if (prev_pwr > 100)
-			prev_pwr = 100;
+		switch (anti_windup) {
+		case CLAMP:
+			if (sat == out || (out > sat) != (e > 0))
+				int_e = int_next;
+			break;
+		case BACK_CALCULATION:
+			int_e = int_next;
+			if (sat != out && Ki != 0)
+				int_e -= (out - sat) / Ki * Math.min(1, dt / tracking_time);
+			break;
+		default:
+			int_e = int_next;
+		}
 		
-		return prev_pwr;
+		pwr = (int)Math.round(sat);
+		f_term = ff;
+		prev_pwr = sat - ff;
+		return pwr;
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,234 @@
+package reflow;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Searches PID gains by running the profile against a thermal model for every candidate.
+ * Candidates are simulated in parallel on the common fork-join pool.
+ */
+public class PidTuner {
+
+	public static class Candidate {
+		private final double p, i, d;
+		private double integral_error;
+		private double max_error;
+		private double min_error;
+		private double peak_temp;
+		private double score;
+
+		public Candidate(double p, double i, double d) {
+			this.p = p;
+			this.i = i;
+			this.d = d;
+		}
+
+		public double getP() {
+			return p;
+		}
+
+		public double getI() {
+			return i;
+		}
+
+		public double getD() {
+			return d;
+		}
+
+		public double getIntegralError() {
+			return integral_error;
+		}
+
+		public double getMaxError() {
+			return max_error;
+		}
+
+		public double getMinError() {
+			return min_error;
+		}
+
+		public double getPeakTemperature() {
+			return peak_temp;
+		}
+
+		public double getScore() {
+			return score;
+		}
+	}
+
+	private final ProfileCurve curve;
+	private final ThermalModel model;
+	private long period_ms = 1000;
+	private double overshoot_weight = 10;
+	private FeedForward feed_forward = null;
+	private double lookahead = 0;
+	private PidController.Options options = PidController.Options.DEFAULT;
+	private ControlStrategy.Kind kind = ControlStrategy.Kind.INCREMENTAL;
+
+	/**
+	 * The model is only used as a template, every candidate gets its own copy.
+	 */
+	public PidTuner(Profile profile, ThermalModel model) {
+		this(profile.getCurve(), model);
+	}
+
+	public PidTuner(ProfileCurve curve, ThermalModel model) {
+		this.curve = curve;
+		this.model = model;
+	}
+
+	public void setPeriod(long period_ms) {
+		this.period_ms = period_ms;
+	}
+
+	/**
+	 * Tune the PID gains for runs with this feed-forward and look-ahead.
+	 */
+	public void setFeedForward(FeedForward feed_forward, double lookahead) {
+		this.feed_forward = feed_forward;
+		this.lookahead = lookahead;
+	}
+
+	/**
+	 * Anti-windup, derivative filter and dt guard of the simulated controllers.
+	 */
+	public void setOptions(PidController.Options options) {
+		this.options = options;
+	}
+
+	/**
+	 * Tune the velocity form (default) or positional PID.
+	 */
+	public void setKind(ControlStrategy.Kind kind) {
+		if (kind == ControlStrategy.Kind.MPC)
+			throw new IllegalArgumentException("MPC has no gains to tune");
+		this.kind = kind;
+	}
+
+	/**
+	 * Weight of squared overshoot (negative error) relative to the squared error integral.
+	 */
+	public void setOvershootWeight(double overshoot_weight) {
+		this.overshoot_weight = overshoot_weight;
+	}
+
+	public List<Candidate> gridSearch(double[] p_values, double[] i_values, double[] d_values) {
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (double p : p_values)
+			for (double i : i_values)
+				for (double d : d_values)
+					candidates.add(new Candidate(p, i, d));
+		return evaluate(candidates);
+	}
+
+	public List<Candidate> randomSearch(int count, double p_max, double i_max, double d_max, long seed) {
+		Random random = new Random(seed);
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (int c = 0; c < count; c++)
+			candidates.add(new Candidate(random.nextDouble() * p_max, random.nextDouble() * i_max, random.nextDouble() * d_max));
+		return evaluate(candidates);
+	}
+
+	/**
+	 * Simulate all candidates and return them ranked, best first.
+	 */
+	public List<Candidate> evaluate(List<Candidate> candidates) {
+		candidates.parallelStream().forEach(new Consumer<Candidate>() {
+			@Override
+			public void accept(Candidate c) {
+				evaluate(c);
+			}
+		});
+
+		List<Candidate> ranked = new ArrayList<Candidate>(candidates);
+		Collections.sort(ranked, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				return Double.compare(a.score, b.score);
+			}
+		});
+		return ranked;
+	}
+
+	private void evaluate(Candidate c) {
+		ReflowRun run = ReflowRun.simulate(curve, ControlStrategy.pid(kind, c.p, c.i, c.d, options), feed_forward, lookahead,
+				new ThermalModel(model), period_ms);
+		c.integral_error = run.getIntegralError();
+		c.max_error = run.getMaxError();
+		c.min_error = run.getMinError();
+		c.peak_temp = run.getPeakTemperature();
+		c.score = c.integral_error + overshoot_weight * c.min_error * c.min_error;
+		if (Double.isNaN(c.score))
+			c.score = Double.POSITIVE_INFINITY;
+	}
+
+	public static String formatTable(List<Candidate> ranked, int rows) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%4s %8s %8s %8s %12s %8s %8s %8s\n", "#", "P", "I", "D", "Score", "MaxErr", "MinErr", "Peak"));
+		for (int c = 0; c < Math.min(rows, ranked.size()); c++) {
+			Candidate r = ranked.get(c);
+			sb.append(String.format("%4d %8.4f %8.4f %8.4f %12.1f %8.1f %8.1f %8.1f\n",
+					c + 1, r.p, r.i, r.d, r.score, r.max_error, r.min_error, r.peak_temp));
+		}
+		return sb.toString();
+	}
+
+	static double[] range(double from, double to, int steps) {
+		double[] values = new double[steps];
+		for (int c = 0; c < steps; c++)
+			values[c] = steps == 1 ? from : from + (to - from) * c / (steps - 1);
+		return values;
+	}
+
+	/**
+	 * Usage: PidTuner profile.pfl [grid | random count]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: PidTuner <profile.pfl> [grid | random <count>]");
+			System.exit(1);
+		}
+
+		Profile profile = new Profile();
+		if (!profile.load(args[0])) {
+			System.err.println("Error loading profile " + args[0]);
+			System.exit(1);
+		}
+
+		Properties config = new Properties();
+		try {
+			FileInputStream input = new FileInputStream("reflow.properties");
+			config.load(input);
+			input.close();
+		} catch (Exception ex) {
+			System.err.println("Error loading configuration data, using default oven model.");
+		}
+
+		PidTuner tuner = new PidTuner(ProfileCurve.fromConfig(profile, config), ThermalModel.fromConfig(config));
+		tuner.setFeedForward(FeedForward.fromConfig(config), Double.parseDouble(config.getProperty("control.lookahead", "0")));
+		tuner.setOptions(PidController.Options.fromConfig(config));
+		ControlStrategy.Kind kind = ControlStrategy.Kind.parse(config.getProperty("control.strategy", "incremental"));
+		if (kind == ControlStrategy.Kind.MPC) {
+			System.err.println("control.strategy is mpc, nothing to tune");
+			System.exit(1);
+		}
+		tuner.setKind(kind);
+		long start = System.nanoTime();
+		List<Candidate> ranked;
+		if (args.length > 1 && args[1].equals("random")) {
+			int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+			ranked = tuner.randomSearch(count, 5, 0.05, 2, System.nanoTime());
+		} else {
+			ranked = tuner.gridSearch(range(0.1, 5, 25), range(0, 0.02, 5), range(0, 2, 9));
+		}
+		System.out.format("%d candidates in %.1f s on %d cores\n", ranked.size(),
+				(System.nanoTime() - start) / 1e9, Runtime.getRuntime().availableProcessors());
+		System.out.print(formatTable(ranked, 20));
+	}
+}
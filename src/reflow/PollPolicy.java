@@ -0,0 +1,95 @@
+package reflow;
+
+import java.util.Properties;
+
+/**
+ * Adaptive temperature poll interval. Polls fast while the setpoint is steep, the error is large or the
+ * setpoint is near the profile peak, at the normal rate during the rest of a run and slowly when idle.
+ * While polls go unanswered the interval doubles per failure up to the idle one.
+ * Updated from the control thread, read by the poller.
+ */
+public class PollPolicy {
+
+	private final int fast, normal, idle;		// ms
+	private final double steep_slope;			// °C/s
+	private final double large_error;			// °C
+	private final double peak_margin;			// °C
+
+	private volatile boolean running = false;
+	private volatile double peak = Double.MAX_VALUE;
+	private volatile boolean fast_phase = false;
+	private volatile int failures = 0;
+
+	public PollPolicy(int fast, int normal, int idle, double steep_slope, double large_error, double peak_margin) {
+		if (fast <= 0 || normal < fast || idle < normal)
+			throw new IllegalArgumentException("Poll intervals must be positive and fast <= normal <= idle");
+		this.fast = fast;
+		this.normal = normal;
+		this.idle = idle;
+		this.steep_slope = steep_slope;
+		this.large_error = large_error;
+		this.peak_margin = peak_margin;
+	}
+
+	/**
+	 * A run started, peak is the highest setpoint of its profile.
+	 */
+	public void runStarted(double peak) {
+		this.peak = peak;
+		fast_phase = true;		// Until the first step says otherwise
+		running = true;
+	}
+
+	public void runStopped() {
+		running = false;
+		fast_phase = false;
+	}
+
+	/**
+	 * Control step of the run: setpoint, its slope in °C/s and setpoint - temperature.
+	 */
+	public void update(double setpoint, double slope, double error) {
+		fast_phase = Math.abs(slope) >= steep_slope || Math.abs(error) >= large_error || setpoint >= peak - peak_margin;
+	}
+
+	public void onReply() {
+		failures = 0;
+	}
+
+	public void onFailure() {
+		failures++;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Time until the next poll, ms.
+	 */
+	public int getInterval() {
+		int f = failures;
+		if (f > 0)
+			return (int)Math.min(idle, (long)normal << Math.min(f, 20));
+		if (!running)
+			return idle;
+		return fast_phase ? fast : normal;
+	}
+
+	/**
+	 * Adaptive policy when poll.policy is adaptive, null for the fixed poll_interval.
+	 * Intervals poll.fast, poll.normal, poll.idle (ms), thresholds poll.steep_slope (°C/s), poll.large_error
+	 * and poll.peak_margin (°C).
+	 */
+	public static PollPolicy fromConfig(Properties config) {
+		if (!config.getProperty("poll.policy", "fixed").trim().equalsIgnoreCase("adaptive"))
+			return null;
+		return new PollPolicy(
+				Integer.parseInt(config.getProperty("poll.fast", "250")),
+				Integer.parseInt(config.getProperty("poll.normal", "1000")),
+				Integer.parseInt(config.getProperty("poll.idle", "5000")),
+				Double.parseDouble(config.getProperty("poll.steep_slope", "1.5")),
+				Double.parseDouble(config.getProperty("poll.large_error", "5")),
+				Double.parseDouble(config.getProperty("poll.peak_margin", "10")));
+	}
+}
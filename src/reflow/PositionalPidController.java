@@ -0,0 +1,110 @@
+package reflow;
+
+/**
+ * Textbook PID, duty = Kp*e + Ki*integral(e) + Kd*de/dt + feed-forward, with the anti-windup, derivative filter
+ * and dt guard of PidController.Options. Unlike the velocity form the output drops back as soon as the error does,
+ * so gains from the usual tuning rules apply directly.
+ */
+public class PositionalPidController implements ControlStrategy {
+
+	private final double Kp, Ki, Kd;
+
+	private PidController.AntiWindup anti_windup;
+	private double tracking_time;
+	private double d_filter;
+	private double min_dt;
+
+	private boolean first;
+	private double prev_e;
+	private double int_e;
+	private double de_f;
+	private int pwr;
+	private double p_term, i_term, d_term;
+
+	public PositionalPidController(double p, double i, double d) {
+		Kp = p;
+		Ki = i;
+		Kd = d;
+		setOptions(PidController.Options.DEFAULT);
+		reset();
+	}
+
+	public void setOptions(PidController.Options options) {
+		anti_windup = options.getAntiWindup();
+		tracking_time = options.getTrackingTime();
+		d_filter = options.getDerivativeFilter();
+		min_dt = options.getMinDt();
+	}
+
+	@Override
+	public void reset() {
+		first = true;
+		prev_e = 0;
+		int_e = 0;
+		de_f = 0;
+		pwr = 0;
+		p_term = 0;
+		i_term = 0;
+		d_term = 0;
+	}
+
+	@Override
+	public int step(double time, double dt, double temperature, double setpoint, double feed_forward) {
+		if (!(dt >= min_dt))
+			return pwr;
+
+		double e = setpoint - temperature;
+		double int_next = int_e + (first ? e : (prev_e + e) / 2) * dt;
+		double de = first ? 0 : (e - prev_e) / dt;		// No kick from the error jumping up from 0 at start
+		if (d_filter > 0) {
+			de_f += (de - de_f) * dt / (d_filter + dt);
+			de = de_f;
+		}
+		first = false;
+		prev_e = e;
+
+		p_term = Kp * e;
+		i_term = Ki * int_next;
+		d_term = Kd * de;
+		double out = p_term + i_term + d_term + feed_forward;
+		double sat = out < 0 ? 0 : (out > 100 ? 100 : out);
+
+		switch (anti_windup) {
+		case CLAMP:
+			if (sat == out || (out > sat) != (e > 0))
+				int_e = int_next;
+			break;
+		case BACK_CALCULATION:
+			int_e = int_next;
+			if (sat != out && Ki != 0)
+				int_e -= (out - sat) / Ki * Math.min(1, dt / tracking_time);
+			break;
+		default:
+			int_e = int_next;
+		}
+		i_term = Ki * int_e;
+
+		pwr = (int)Math.round(sat);
+		return pwr;
+	}
+
+	@Override
+	public double getProportionalTerm() {
+		return p_term;
+	}
+
+	@Override
+	public double getIntegralTerm() {
+		return i_term;
+	}
+
+	@Override
+	public double getDerivativeTerm() {
+		return d_term;
+	}
+
+	@Override
+	public double getMinDt() {
+		return min_dt;
+	}
+}
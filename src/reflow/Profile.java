@@ -1,16 +1,39 @@
 package reflow;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.zip.CRC32;
 
+/**
+ * Reflow profile: temperature points joined by straight segments, starting from (0,0).
+ *
+ * Profiles are stored either as text (.pfl): name, number of points, then one "time temperature" pair per line,
+ * or in the compiled binary form (.rpf), little endian: "RFPF", version (short), name length (short),
+ * number of points (int), UTF-8 name padded to 8 bytes, times, temperatures (doubles), CRC32 of all the preceding bytes (int).
+ */
 public class Profile {
 	
+	static final byte[] MAGIC = {'R', 'F', 'P', 'F'};
+	static final short VERSION = 1;
+	static final double MAX_TEMPERATURE = 400;
+	private static final int HEADER_SIZE = 12;
+	// Most points whose compiled form, with the longest name, still fits an int sized buffer
+	static final int MAX_POINTS = (Integer.MAX_VALUE - dataOffset(Short.MAX_VALUE) - 4) / 16;
+	
 	private double[] time;
 	private double[] temperature;
+	private ProfileCurve curve;
 	private int num_points;
 	private String name;
 	private String filename;
+	private String error;
 	
 	public Profile() {
 		num_points = 0;
@@ -24,7 +47,7 @@ public class Profile {
 			writer.println(name);
 			writer.format("%d\n", num_points);
 			for (int c = 0; c < num_points; c++)
-				writer.format("%f %f\n", time[c], temperature[c]);
+				writer.format(Locale.ROOT, "%f %f\n", time[c], temperature[c]);
 			writer.close();
 		} catch (Exception e) {
 			return false;
@@ -32,30 +55,225 @@ public class Profile {
 		return true;
 	}
 	
+	/**
+	 * Load a text or compiled profile, telling them apart by content. A name of the form library.rpk#profile
+	 * picks a profile out of a ProfileLibrary. On failure the profile is left unchanged and getError() tells why.
+	 */
 	public boolean load(String filename) {
-// TODO Implement file validations
-		this.filename = filename;
-		File file = new File(filename);
+		error = null;
 		try {
-			Scanner scanner = new Scanner(file);
-			name = scanner.nextLine();
-			num_points = scanner.nextInt();
-			temperature = new double[num_points];
-			time = new double[num_points];
-			
-			for (int c = 0; c < num_points; c++) {
-				time[c] = scanner.nextDouble();
-				temperature[c] = scanner.nextDouble();
+			int hash = filename.lastIndexOf('#');
+			if (hash > 0 && !new File(filename).exists()) {
+				Profile p = ProfileLibrary.open(filename.substring(0, hash)).get(filename.substring(hash + 1));
+				if (p == null)
+					throw new IOException("No profile " + filename.substring(hash + 1) + " in library");
+				set(p.name, p.time, p.temperature);
+			} else {
+				byte[] data = Files.readAllBytes(Paths.get(filename));
+				if (isCompiled(data))
+					read(ByteBuffer.wrap(data));
+				else
+					parse(new String(data, StandardCharsets.UTF_8));
 			}
-
-			scanner.close();
-			
+		} catch (IOException | RuntimeException e) {
+			error = e.getMessage() != null ? e.getMessage() : e.toString();
+			return false;
+		}
+		this.filename = filename;
+		return true;
+	}
+	
+	/**
+	 * Why the last load() failed.
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	private static boolean isCompiled(byte[] data) {
+		return data.length >= MAGIC.length && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2] && data[3] == MAGIC[3];
+	}
+	
+	private void parse(String text) throws IOException {
+		String[] lines = text.split("\r?\n", 2);
+		String profile_name = lines[0].trim();
+		String[] tokens = lines.length > 1 ? lines[1].trim().split("\\s+") : new String[0];
+		if (tokens.length == 0 || tokens[0].isEmpty())
+			throw new IOException("Missing number of points");
+		
+		int n = parseInt(tokens[0]);
+		if (n < 1 || n > MAX_POINTS)
+			throw new IOException("Bad number of points " + n);
+		if (tokens.length != 1 + 2 * n)
+			throw new IOException("Expected " + n + " points, found " + (tokens.length - 1) / 2.0);
+		
+		double[] t = new double[n];
+		double[] temp = new double[n];
+		for (int c = 0; c < n; c++) {
+			t[c] = parseDouble(tokens[1 + 2 * c]);
+			temp[c] = parseDouble(tokens[2 + 2 * c]);
+		}
+		set(profile_name, t, temp);
+	}
+	
+	private static int parseInt(String token) throws IOException {
+		try {
+			return Integer.parseInt(token);
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad number " + token);
+		}
+	}
+	
+	// Older versions wrote numbers in the default locale, accept a decimal comma
+	private static double parseDouble(String token) throws IOException {
+		try {
+			return Double.parseDouble(token.replace(',', '.'));
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad number " + token);
+		}
+	}
+	
+	/**
+	 * Check that a profile can be run: points present, finite, in time order, temperatures in range.
+	 * @return description of the first problem, null if none
+	 */
+	public static String validate(String name, double[] time, double[] temperature) {
+		if (time.length != temperature.length)
+			return "Time and temperature counts differ";
+		if (time.length < 1 || time.length > MAX_POINTS)
+			return "Bad number of points " + time.length;
+		if (name.getBytes(StandardCharsets.UTF_8).length > Short.MAX_VALUE)
+			return "Profile name too long";
+		for (int c = 0; c < time.length; c++) {
+			if (Double.isNaN(time[c]) || Double.isInfinite(time[c]) || time[c] < 0)
+				return "Bad time at point " + (c + 1);
+			if (c > 0 && time[c] <= time[c - 1])
+				return "Times not ascending at point " + (c + 1);
+			if (!(temperature[c] >= 0 && temperature[c] <= MAX_TEMPERATURE))
+				return "Temperature out of range at point " + (c + 1);
+		}
+		return null;
+	}
+	
+	private void set(String profile_name, double[] t, double[] temp) throws IOException {
+		String problem = validate(profile_name, t, temp);
+		if (problem != null)
+			throw new IOException(problem);
+		name = profile_name;
+		time = t;
+		temperature = temp;
+		num_points = t.length;
+		curve = new ProfileCurve(this);
+	}
+	
+	/**
+	 * Size of the compiled form of this profile, bytes.
+	 */
+	public int getCompiledSize() {
+		return dataOffset(name.getBytes(StandardCharsets.UTF_8).length) + 16 * num_points + 4;
+	}
+	
+	private static int dataOffset(int name_length) {
+		return (HEADER_SIZE + name_length + 7) & ~7;
+	}
+	
+	/**
+	 * Write the compiled form at the buffer position and advance it.
+	 */
+	public void write(ByteBuffer out) {
+		String problem = validate(name, time == null ? new double[0] : time, temperature == null ? new double[0] : temperature);
+		if (problem != null)
+			throw new IllegalStateException(problem);
+		
+		ByteBuffer buf = out.slice().order(ByteOrder.LITTLE_ENDIAN);
+		byte[] name_bytes = name.getBytes(StandardCharsets.UTF_8);
+		buf.put(MAGIC).putShort(VERSION).putShort((short)name_bytes.length).putInt(num_points).put(name_bytes);
+		buf.position(dataOffset(name_bytes.length));
+		buf.asDoubleBuffer().put(time, 0, num_points);
+		buf.position(buf.position() + 8 * num_points);
+		buf.asDoubleBuffer().put(temperature, 0, num_points);
+		buf.position(buf.position() + 8 * num_points);
+		
+		CRC32 crc = new CRC32();
+		ByteBuffer covered = buf.duplicate();
+		covered.flip();
+		crc.update(covered);
+		buf.putInt((int)crc.getValue());
+		out.position(out.position() + buf.position());
+	}
+	
+	public boolean saveCompiled(String filename) {
+		ByteBuffer buf = ByteBuffer.allocate(getCompiledSize());
+		try {
+			write(buf);
+			Files.write(Paths.get(filename), buf.array());
 		} catch (Exception e) {
 			return false;
 		}
+		this.filename = filename;
 		return true;
 	}
 	
+	/**
+	 * Read a compiled profile at the buffer position and advance past it.
+	 * Points are copied out of the buffer in bulk, the name is the only other allocation.
+	 */
+	public static Profile read(ByteBuffer in, String filename) throws IOException {
+		Profile p = new Profile();
+		p.read(in);
+		p.filename = filename;
+		return p;
+	}
+	
+	private void read(ByteBuffer in) throws IOException {
+		ByteBuffer buf = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (buf.remaining() < HEADER_SIZE || buf.get(0) != MAGIC[0] || buf.get(1) != MAGIC[1] || buf.get(2) != MAGIC[2] || buf.get(3) != MAGIC[3])
+			throw new IOException("Not a compiled profile");
+		short version = buf.getShort(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported profile version " + version);
+		int name_length = buf.getShort(6);
+		int n = buf.getInt(8);
+		if (name_length < 0 || n < 1 || n > MAX_POINTS)
+			throw new IOException("Corrupt profile header");
+		int data_offset = dataOffset(name_length);
+		int crc_offset = data_offset + 16 * n;
+		if (buf.remaining() < crc_offset + 4)
+			throw new IOException("Truncated profile");
+		
+		CRC32 crc = new CRC32();
+		ByteBuffer covered = buf.duplicate();
+		covered.limit(crc_offset);
+		crc.update(covered);
+		if ((int)crc.getValue() != buf.getInt(crc_offset))
+			throw new IOException("Profile checksum mismatch");
+		
+		byte[] name_bytes = new byte[name_length];
+		buf.position(HEADER_SIZE);
+		buf.get(name_bytes);
+		double[] t = new double[n];
+		double[] temp = new double[n];
+		buf.position(data_offset);
+		buf.asDoubleBuffer().get(t);
+		buf.position(data_offset + 8 * n);
+		buf.asDoubleBuffer().get(temp);
+		set(new String(name_bytes, StandardCharsets.UTF_8), t, temp);
+		in.position(in.position() + crc_offset + 4);
+	}
+	
+	/**
+	 * Replace profile points, times must be sorted in ascending order.
+	 */
+	public void setPoints(double[] time, double[] temperature) {
+		if (time.length != temperature.length)
+			throw new IllegalArgumentException("Time and temperature arrays differ in length");
+		
+		this.time = time;
+		this.temperature = temperature;
+		num_points = time.length;
+		curve = new ProfileCurve(this);
+	}
+	
 	public String getFilename() {
 		return filename;
 	}
@@ -96,31 +314,33 @@ public class Profile {
 		return num_points == 0 ? 0 : time[num_points - 1];
 	}
 	
+	public double getMaxTemperature() {
+		double max = 0;
+		for (int c = 0; c < num_points; c++)
+			max = Math.max(max, temperature[c]);
+		return max;
+	}
+	
+	/**
+	 * Straight line interpolation through the points, see ProfileCurve for other modes.
+	 */
+	public ProfileCurve getCurve() {
+		if (curve == null)
+			curve = new ProfileCurve(this);
+		return curve;
+	}
+	
+	/**
+	 * Profile temperature at the given time, binary search over the points.
+	 */
 	public double getTemperature(double t) {
-		int c;
-		double prev_time, prev_temp;
-		
-		if (num_points == 0)
-			return 0;
-		
-		for (c = 0; c < num_points; c++) 
-			if (time[c] >= t)
-				break;
-		
-		if (c == num_points)
-			return temperature[num_points - 1];
+		return getCurve().getTemperature(t);
+	}
 	
-		if (time[c] == t)
-			return temperature[c];
-		
-		if (c == 0) {			// Assume point (0,0) if not specified
-			prev_time = 0;
-			prev_temp = 0;
-		} else {
-			prev_time = time[c-1];
-			prev_temp = temperature[c-1];
-		}
-		
-		return (t - prev_time) * (temperature[c] - prev_temp) / (time[c] - prev_time) + prev_temp;
+	/**
+	 * Cursor for callers asking for monotonically changing times, remembers the last segment.
+	 */
+	public ProfileCurve.Cursor cursor() {
+		return getCurve().cursor();
 	}
 }
@@ -0,0 +1,254 @@
+package reflow;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loaded profiles by file name, least recently used ones are evicted beyond the capacity.
+ * An entry is only used while the file's modification time is unchanged. Directories of cached files are
+ * watched, changed profiles are reloaded in the background and deleted ones dropped.
+ *
+ * Cached profiles are shared, callers must not modify them.
+ */
+public class ProfileCache {
+
+	private static class Entry {
+		final Profile profile;
+		final Path path;		// File on disk, the library for library.rpk#name
+		final long mtime;
+
+		Entry(Profile profile, Path path, long mtime) {
+			this.profile = profile;
+			this.path = path;
+			this.mtime = mtime;
+		}
+	}
+
+	// Where a file name points to, resolved on every get()
+	private static class Location {
+		String key;
+		Path path;
+		long mtime;
+	}
+
+	private final int capacity;
+	private final LinkedHashMap<String, Entry> entries;
+	private final Map<Path, WatchKey> watched = new HashMap<Path, WatchKey>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong reloads = new AtomicLong();
+	private WatchService watcher = null;
+	private Thread watch_thread = null;
+	private boolean closed = false;
+
+	public ProfileCache(int capacity) {
+		this.capacity = capacity;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > ProfileCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Cached profile for the file, loaded if missing or changed on disk.
+	 * @throws IOException with the reason when the profile can't be loaded
+	 */
+	public Profile get(String filename) throws IOException {
+		Location l = locate(filename);
+		synchronized (this) {
+			Entry e = entries.get(l.key);
+			if (e != null && e.mtime == l.mtime) {
+				hits.incrementAndGet();
+				return e.profile;
+			}
+		}
+
+		misses.incrementAndGet();
+		Entry e = load(filename, l.path);
+		synchronized (this) {
+			if (!closed) {
+				entries.put(l.key, e);
+				watch(l.path.getParent());
+			}
+		}
+		return e.profile;
+	}
+
+	/**
+	 * Drop an entry, the next get() loads the file again.
+	 */
+	public void invalidate(String filename) {
+		try {
+			Location l = locate(filename);
+			synchronized (this) {
+				entries.remove(l.key);
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Profiles reloaded in the background after their file changed.
+	 */
+	public long getReloadCount() {
+		return reloads.get();
+	}
+
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			closed = true;
+			entries.clear();
+			watched.clear();
+			t = watch_thread;
+			if (watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static Entry load(String filename, Path path) throws IOException {
+		long mtime = Files.getLastModifiedTime(path).toMillis();
+		Profile profile = new Profile();
+		if (!profile.load(filename))
+			throw new IOException(profile.getError());
+		return new Entry(profile, path, mtime);
+	}
+
+	// Same rule as Profile.load: library.rpk#name unless a file of that name exists. Costs one stat when cached.
+	private static Location locate(String filename) throws IOException {
+		Location l = new Location();
+		l.path = Paths.get(filename).toAbsolutePath().normalize();
+		l.key = l.path.toString();
+		try {
+			l.mtime = Files.getLastModifiedTime(l.path).toMillis();
+		} catch (NoSuchFileException e) {
+			int hash = filename.lastIndexOf('#');
+			if (hash <= 0)
+				throw e;
+			l.path = Paths.get(filename.substring(0, hash)).toAbsolutePath().normalize();
+			l.key = l.path + filename.substring(hash);
+			l.mtime = Files.getLastModifiedTime(l.path).toMillis();
+		}
+		return l;
+	}
+
+	private void watch(Path dir) {
+		if (dir == null || watched.containsKey(dir))
+			return;
+		try {
+			if (watcher == null) {
+				watcher = FileSystems.getDefault().newWatchService();
+				watch_thread = new Thread("reflow-profile-watch") {
+					public void run() {
+						watchLoop();
+					}
+				};
+				watch_thread.setDaemon(true);
+				watch_thread.start();
+			}
+			watched.put(dir, dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+		} catch (IOException e) {
+			System.err.println("Can't watch profile directory " + dir + ": " + e.getMessage());
+		}
+	}
+
+	private void watchLoop() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				Path dir = (Path)key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						refresh(dir, null);
+					else
+						refresh(dir, dir.resolve((Path)event.context()));
+				}
+				if (!key.reset()) {
+					synchronized (this) {
+						watched.remove(dir);
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+		} catch (InterruptedException e) {
+		}
+	}
+
+	// Reload entries coming from the file, or from every file in the directory when changed is null
+	private void refresh(Path dir, Path changed) {
+		List<Map.Entry<String, Entry>> stale = new ArrayList<Map.Entry<String, Entry>>();
+		synchronized (this) {
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+				if (changed == null ? dir.equals(e.getValue().path.getParent()) : changed.equals(e.getValue().path))
+					stale.add(new AbstractMap.SimpleEntry<String, Entry>(e));
+		}
+
+		for (Map.Entry<String, Entry> e : stale) {
+			Entry old = e.getValue();
+			Entry fresh = null;
+			try {
+				if (Files.getLastModifiedTime(old.path).toMillis() == old.mtime)
+					continue;
+				fresh = load(old.profile.getFilename(), old.path);
+			} catch (NoSuchFileException ex) {
+				// Deleted, drop the entry
+			} catch (IOException ex) {
+				continue;	// Probably caught halfway through writing, the next event retries
+			}
+
+			synchronized (this) {
+				if (entries.get(e.getKey()) != old)
+					continue;
+				if (fresh != null) {
+					entries.put(e.getKey(), fresh);
+					reloads.incrementAndGet();
+				} else
+					entries.remove(e.getKey());
+			}
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package reflow;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Setpoint curve through the points of a profile, starting from (0,0) unless the profile has a point at time 0.
+ * Each segment is a cubic in the time since its start with coefficients computed once, evaluation is a lookup
+ * and a polynomial and never allocates. Curves are immutable, so one profile can be run with several modes at once.
+ */
+public class ProfileCurve {
+
+	public enum Interpolation {
+		LINEAR,			// Straight segments, the slope jumps at every point
+		MONOTONE_CUBIC,	// Fritsch-Carlson spline, smooth slope and no overshoot between points
+		RAMP;			// Straight segments with the rate of change limited, corners rounded off within the limit
+
+		public static Interpolation parse(String s) {
+			return valueOf(s.trim().toUpperCase());
+		}
+	}
+
+	private static final double RAMP_STEP = 0.1;	// s
+	private static final double RAMP_CORNER = 2;	// Half width of a rounded corner, s
+
+	private final Profile profile;
+	private final Interpolation interpolation;
+	private final double max_rate;
+
+	// Knot times, segment c covers x[c]..x[c + 1], value is a + b*s + c2*s^2 + c3*s^3 with s = t - x[c]
+	private final double[] x;
+	private final double[] a, b, c2, c3;
+	private final int segments;
+
+	public ProfileCurve(Profile profile) {
+		this(profile, Interpolation.LINEAR, 0);
+	}
+
+	/**
+	 * @param max_rate steepest allowed setpoint change for RAMP, °C/s
+	 */
+	public ProfileCurve(Profile profile, Interpolation interpolation, double max_rate) {
+		if (interpolation == Interpolation.RAMP && !(max_rate > 0))
+			throw new IllegalArgumentException("Ramp needs a positive maximum rate");
+		this.profile = profile;
+		this.interpolation = interpolation;
+		this.max_rate = max_rate;
+
+		double[][] knots = knots(profile);
+		if (interpolation == Interpolation.RAMP)
+			knots = corners(rateLimit(knots[0], knots[1], max_rate));
+		x = knots[0];
+		double[] y = knots[1];
+		segments = Math.max(0, x.length - 1);
+		a = new double[x.length];
+		b = new double[x.length];
+		c2 = new double[x.length];
+		c3 = new double[x.length];
+		System.arraycopy(y, 0, a, 0, y.length);
+
+		if (interpolation == Interpolation.LINEAR) {
+			for (int c = 0; c < segments; c++)
+				b[c] = x[c + 1] > x[c] ? (y[c + 1] - y[c]) / (x[c + 1] - x[c]) : 0;
+		} else if (interpolation == Interpolation.RAMP) {
+			blend(knots[2]);
+			for (int c = 0; c < segments; c++)
+				if (Math.abs(slope(x[c], c)) > max_rate + 1e-6 || Math.abs(slope(x[c + 1], c)) > max_rate + 1e-6)
+					throw new IllegalStateException("Ramp exceeds the maximum rate at " + x[c] + " s");
+		} else
+			hermite(x, y);
+	}
+
+	// Profile points with the implicit start at (0,0)
+	private static double[][] knots(Profile profile) {
+		int n = profile.getNumPoints();
+		double[] time = profile.getTimes();
+		double[] temperature = profile.getTemperatures();
+		int offset = n > 0 && time[0] > 0 ? 1 : 0;
+		double[] kx = new double[n + offset];
+		double[] ky = new double[n + offset];
+		if (n > 0) {
+			System.arraycopy(time, 0, kx, offset, n);
+			System.arraycopy(temperature, 0, ky, offset, n);
+		}
+		return new double[][] { kx, ky };
+	}
+
+	// Fritsch-Carlson tangents, then cubic Hermite coefficients per segment
+	private void hermite(double[] x, double[] y) {
+		int n = x.length;
+		if (n < 2)
+			return;
+		double[] delta = new double[n - 1];
+		double[] m = new double[n];
+		for (int c = 0; c < n - 1; c++)
+			delta[c] = x[c + 1] > x[c] ? (y[c + 1] - y[c]) / (x[c + 1] - x[c]) : 0;
+
+		m[0] = delta[0];
+		m[n - 1] = delta[n - 2];
+		for (int c = 1; c < n - 1; c++)
+			m[c] = delta[c - 1] * delta[c] > 0 ? (delta[c - 1] + delta[c]) / 2 : 0;
+
+		for (int c = 0; c < n - 1; c++) {
+			if (delta[c] == 0) {
+				m[c] = 0;
+				m[c + 1] = 0;
+				continue;
+			}
+			double alpha = m[c] / delta[c];
+			double beta = m[c + 1] / delta[c];
+			double r = alpha * alpha + beta * beta;
+			if (r > 9) {
+				double tau = 3 / Math.sqrt(r);
+				m[c] = tau * alpha * delta[c];
+				m[c + 1] = tau * beta * delta[c];
+			}
+		}
+
+		for (int c = 0; c < n - 1; c++) {
+			double h = x[c + 1] - x[c];
+			if (h <= 0)
+				continue;
+			b[c] = m[c];
+			c2[c] = (3 * delta[c] - 2 * m[c] - m[c + 1]) / h;
+			c3[c] = (m[c] + m[c + 1] - 2 * delta[c]) / (h * h);
+		}
+	}
+
+	// Ramp knots with each corner replaced by a blend from RAMP_CORNER before to RAMP_CORNER after it, at most half
+	// of the neighbouring segments. Returns times, values at the times as if the corners were sharp, and the slope
+	// of the straight segment starting at each time
+	private static double[][] corners(double[][] knots) {
+		double[] kx = knots[0], ky = knots[1];
+		int n = kx.length;
+		if (n < 3)
+			return new double[][] { kx, ky, slopes(kx, ky) };
+		double[] delta = slopes(kx, ky);
+		double[] rx = new double[2 * n - 2];
+		double[] ry = new double[2 * n - 2];
+		double[] rd = new double[2 * n - 2];
+		rx[0] = kx[0];
+		ry[0] = ky[0];
+		rd[0] = delta[0];
+		int m = 1;
+		for (int c = 1; c < n - 1; c++) {
+			double w = Math.min(RAMP_CORNER, Math.min(kx[c] - kx[c - 1], kx[c + 1] - kx[c]) / 2);
+			rx[m] = kx[c] - w;
+			ry[m] = ky[c] - delta[c - 1] * w;
+			rd[m++] = delta[c - 1];
+			rx[m] = kx[c] + w;
+			ry[m] = ky[c] + delta[c] * w;
+			rd[m++] = delta[c];
+		}
+		rx[m] = kx[n - 1];
+		ry[m] = ky[n - 1];
+		rd[m] = 0;
+		return new double[][] { rx, ry, rd };
+	}
+
+	private static double[] slopes(double[] x, double[] y) {
+		double[] d = new double[x.length];
+		for (int c = 0; c < x.length - 1; c++)
+			d[c] = x[c + 1] > x[c] ? (y[c + 1] - y[c]) / (x[c + 1] - x[c]) : 0;
+		return d;
+	}
+
+	// Straight segments between corners, quadratics across them whose slope goes linearly from one rate to the next,
+	// so the slope never leaves the range of the rate limited segments
+	private void blend(double[] d) {
+		for (int c = 0; c < segments; c++) {
+			double h = x[c + 1] - x[c];
+			b[c] = d[c];
+			if (c % 2 == 1 && h > 0)
+				c2[c] = (d[c + 1] - d[c]) / (2 * h);
+		}
+	}
+
+	// Follow the straight segments no faster than max_rate, keeping only the points where the rate changes
+	private static double[][] rateLimit(double[] x, double[] y, double max_rate) {
+		if (x.length < 2)
+			return new double[][] { x, y };
+
+		int last = x.length - 1;
+		double[] rx = new double[64];
+		double[] ry = new double[64];
+		int n = 0;
+		double r = y[0];
+		double rate = Double.NaN;
+		int seg = 0;
+		for (int step = 0; ; step++) {
+			double t = x[0] + step * RAMP_STEP;
+			while (seg < last - 1 && x[seg + 1] <= t)
+				seg++;
+			double target = t >= x[last] ? y[last] : y[seg] + (y[seg + 1] - y[seg]) * (t - x[seg]) / (x[seg + 1] - x[seg]);
+			double next_rate = Math.max(-max_rate * RAMP_STEP, Math.min(max_rate * RAMP_STEP, target - r));
+			boolean done = t >= x[last] && Math.abs(target - r) < 1e-9;
+			if (done || !(Math.abs(next_rate - rate) < 1e-9)) {
+				if (n == rx.length) {
+					rx = Arrays.copyOf(rx, n * 2);
+					ry = Arrays.copyOf(ry, n * 2);
+				}
+				rx[n] = t;
+				ry[n] = done ? target : r;
+				n++;
+			}
+			if (done)
+				break;
+			rate = next_rate;
+			r += next_rate;
+		}
+		return new double[][] { Arrays.copyOf(rx, n), Arrays.copyOf(ry, n) };
+	}
+
+	public Profile getProfile() {
+		return profile;
+	}
+
+	public Interpolation getInterpolation() {
+		return interpolation;
+	}
+
+	public double getMaxRate() {
+		return max_rate;
+	}
+
+	/**
+	 * End of the curve, a rate limited ramp may finish after the last profile point.
+	 */
+	public double getMaxTime() {
+		return x.length == 0 ? 0 : x[x.length - 1];
+	}
+
+	/**
+	 * Setpoint at the given time, binary search over the segments.
+	 */
+	public double getTemperature(double t) {
+		return value(t, segment(t));
+	}
+
+	/**
+	 * Setpoint rate of change at the given time, °C/s.
+	 */
+	public double getSlope(double t) {
+		return slope(t, segment(t));
+	}
+
+	/**
+	 * Cursor for callers asking for monotonically changing times, remembers the last segment.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	public class Cursor {
+		private int seg = 0;
+
+		public double getTemperature(double t) {
+			return value(t, seek(t));
+		}
+
+		public double getSlope(double t) {
+			return slope(t, seek(t));
+		}
+
+		private int seek(double t) {
+			while (seg < segments - 1 && x[seg + 1] <= t)
+				seg++;
+			while (seg > 0 && x[seg] > t)
+				seg--;
+			return seg;
+		}
+	}
+
+	// Segment containing t, clamped to the first and last one
+	private int segment(double t) {
+		int lo = 0, hi = segments - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (x[mid] <= t)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private double value(double t, int seg) {
+		if (x.length == 0)
+			return 0;
+		if (segments == 0 || t >= x[x.length - 1])
+			return a[x.length - 1];
+		if (t <= x[0])
+			return a[0];
+		double s = t - x[seg];
+		return a[seg] + s * (b[seg] + s * (c2[seg] + s * c3[seg]));
+	}
+
+	private double slope(double t, int seg) {
+		if (segments == 0 || t < x[0] || t >= x[x.length - 1])
+			return 0;
+		double s = t - x[seg];
+		return b[seg] + s * (2 * c2[seg] + s * 3 * c3[seg]);
+	}
+
+	/**
+	 * Curve for the profile as set by profile.interpolation (linear, monotone_cubic, ramp) and profile.max_rate, °C/s.
+	 */
+	public static ProfileCurve fromConfig(Profile profile, Properties config) {
+		return new ProfileCurve(profile, Interpolation.parse(config.getProperty("profile.interpolation", "linear")),
+				Double.parseDouble(config.getProperty("profile.max_rate", "3")));
+	}
+}
@@ -0,0 +1,223 @@
+package reflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Many compiled profiles packed into one memory-mapped file, looked up by name.
+ * Opening reads only the index and names, get() decodes a single profile straight from the mapping.
+ *
+ * Pack layout, little endian: "RFPK", version (short), 2 bytes reserved, number of profiles (int),
+ * then per profile its offset and size in the file (ints), then the compiled profiles, each aligned to 8 bytes.
+ */
+public class ProfileLibrary {
+
+	static final byte[] MAGIC = {'R', 'F', 'P', 'K'};
+	static final short VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+
+	// Opened libraries by absolute path, so picking a profile doesn't map and index the pack again
+	private static final Map<Path, ProfileLibrary> open_libraries = new HashMap<Path, ProfileLibrary>();
+
+	private final String filename;
+	private final long mtime;
+	private final long length;
+	private final MappedByteBuffer map;
+	private final Map<String, Integer> offsets = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+
+	public ProfileLibrary(String filename) throws IOException {
+		this.filename = filename;
+		BasicFileAttributes attributes = Files.readAttributes(Paths.get(filename), BasicFileAttributes.class);
+		mtime = attributes.lastModifiedTime().toMillis();
+		length = attributes.size();
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try {
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();		// Mapping stays valid
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (map.limit() < HEADER_SIZE || map.get(0) != MAGIC[0] || map.get(1) != MAGIC[1] || map.get(2) != MAGIC[2] || map.get(3) != MAGIC[3])
+			throw new IOException("Not a profile library");
+		short version = map.getShort(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported profile library version " + version);
+		int count = map.getInt(8);
+		if (count < 0 || HEADER_SIZE + 8L * count > map.limit())
+			throw new IOException("Corrupt profile library index");
+
+		for (int c = 0; c < count; c++) {
+			int offset = map.getInt(HEADER_SIZE + 8 * c);
+			int size = map.getInt(HEADER_SIZE + 8 * c + 4);
+			if (offset < 0 || size < 16 || (long)offset + size > map.limit())
+				throw new IOException("Corrupt profile library entry " + c);
+			int name_length = map.getShort(offset + 6);
+			if (name_length < 0 || name_length > size - 16)
+				throw new IOException("Corrupt profile library entry " + c);
+			byte[] name_bytes = new byte[name_length];
+			for (int b = 0; b < name_bytes.length; b++)
+				name_bytes[b] = map.get(offset + 12 + b);
+			String name = new String(name_bytes, StandardCharsets.UTF_8);
+			if (offsets.put(name, offset) == null)
+				names.add(name);
+		}
+	}
+
+	/**
+	 * Shared library for the file, opened again only when it changed on disk since the last call.
+	 */
+	public static ProfileLibrary open(String filename) throws IOException {
+		Path path = Paths.get(filename).toAbsolutePath().normalize();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		synchronized (open_libraries) {
+			ProfileLibrary library = open_libraries.get(path);
+			if (library != null && library.mtime == attributes.lastModifiedTime().toMillis() && library.length == attributes.size())
+				return library;
+		}
+
+		ProfileLibrary library = new ProfileLibrary(path.toString());
+		synchronized (open_libraries) {
+			open_libraries.put(path, library);
+		}
+		return library;
+	}
+
+	// Let go of the shared mapping before the file is rewritten
+	private static void forget(String filename) {
+		synchronized (open_libraries) {
+			open_libraries.remove(Paths.get(filename).toAbsolutePath().normalize());
+		}
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Profile names in pack order.
+	 */
+	public List<String> getNames() {
+		return Collections.unmodifiableList(names);
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * Decode a profile, its checksum is verified on every call.
+	 * @return null if the library has no profile of that name
+	 */
+	public Profile get(String name) throws IOException {
+		Integer offset = offsets.get(name);
+		if (offset == null)
+			return null;
+		ByteBuffer buf = map.duplicate();
+		buf.position(offset);
+		return Profile.read(buf, filename + "#" + name);
+	}
+
+	/**
+	 * Write profiles into a new library file. Later profiles with a name already used replace earlier ones on lookup.
+	 */
+	public static void pack(String filename, List<Profile> profiles) throws IOException {
+		int[] offsets = new int[profiles.size()];
+		int[] sizes = new int[profiles.size()];
+		long total = (HEADER_SIZE + 8L * profiles.size() + 7) & ~7;
+		for (int c = 0; c < profiles.size(); c++) {
+			offsets[c] = (int)total;
+			sizes[c] = profiles.get(c).getCompiledSize();
+			total = (total + sizes[c] + 7) & ~7;
+			if (total > Integer.MAX_VALUE)
+				throw new IOException("Profile library too large");
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate((int)total).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(MAGIC).putShort(VERSION).putShort((short)0).putInt(profiles.size());
+		for (int c = 0; c < profiles.size(); c++)
+			buf.putInt(offsets[c]).putInt(sizes[c]);
+		for (int c = 0; c < profiles.size(); c++) {
+			buf.position(offsets[c]);
+			profiles.get(c).write(buf);
+		}
+		buf.clear();
+
+		forget(filename);
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (buf.hasRemaining())
+				channel.write(buf);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Usage:
+	 * ProfileLibrary pack library.rpk profile.pfl|directory ...
+	 * ProfileLibrary compile profile.pfl profile.rpf
+	 * ProfileLibrary list library.rpk
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 3 && args[0].equals("pack")) {
+			List<Profile> profiles = new ArrayList<Profile>();
+			for (int c = 2; c < args.length; c++) {
+				File f = new File(args[c]);
+				File[] files = f.isDirectory() ? f.listFiles() : new File[] { f };
+				if (files == null)
+					continue;
+				for (File file : files) {
+					if (f.isDirectory() && !file.getName().endsWith(".pfl"))
+						continue;
+					Profile p = new Profile();
+					if (!p.load(file.getPath())) {
+						System.err.println("Skipping " + file + ": " + p.getError());
+						continue;
+					}
+					profiles.add(p);
+				}
+			}
+			pack(args[1], profiles);
+			System.out.println("Packed " + profiles.size() + " profiles into " + args[1]);
+		} else if (args.length == 3 && args[0].equals("compile")) {
+			Profile p = new Profile();
+			if (!p.load(args[1])) {
+				System.err.println("Error loading " + args[1] + ": " + p.getError());
+				System.exit(1);
+			}
+			if (!p.saveCompiled(args[2])) {
+				System.err.println("Error writing " + args[2]);
+				System.exit(1);
+			}
+		} else if (args.length == 2 && args[0].equals("list")) {
+			ProfileLibrary library = new ProfileLibrary(args[1]);
+			for (String name : library.getNames()) {
+				Profile p = library.get(name);
+				System.out.format("%-40s %3d points %5.0f s\n", name, p.getNumPoints(), p.getMaxTime());
+			}
+		} else {
+			System.err.println("Usage: ProfileLibrary pack <library.rpk> <profile.pfl | directory>...");
+			System.err.println("       ProfileLibrary compile <profile.pfl> <profile.rpf>");
+			System.err.println("       ProfileLibrary list <library.rpk>");
+			System.exit(1);
+		}
+	}
+}
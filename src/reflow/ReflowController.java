@@ -1,92 +1,490 @@
 package reflow;
 
 import java.io.IOException;
-
-import com.fazecast.jSerialComm.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 public class ReflowController {
 
-	private static SerialPort port;
-	private static Thread poller;
+	private SerialTransport port;
+	private final ScheduledExecutorService timer;
+	private final boolean own_timer;
+	private ScheduledFuture<?> poll_task = null;
+	private int poll_generation = 0;			// Bumped on stop so a running poll doesn't reschedule itself
+	private volatile boolean connected = true;
 	
-	private enum ReadState { RS_HEADER1, RS_HEADER2, RS_COMMAND, RS_DATA};
-
-	private static final byte HDR_BYTE_1 = (byte)0xAA;
-	private static final byte HDR_BYTE_2 = (byte)0x55;
+	static final byte HDR_BYTE_1 = (byte)0xAA;
+	static final byte HDR_BYTE_2 = (byte)0x55;
 	
 	public enum Command { CMD_NONE, CMD_READ_TEMPERATURE, CMD_SET_DUTY_CYCLE, CMD_SET_SENSOR_OFFSET, CMD_SET_LCD_BACKLIGHT, CMD_SET_LCD_CONTRAST, CMD_READ_SETTINGS };   
 	public enum Ack { ACK_ACK, ACK_NACK };
 	public enum TempStatus { TS_UNKNOWN, TS_OK, TS_SCV_FAULT, TS_SCG_FAULT, TS_OC_FAULT };
 
-	private byte[] packet_data = new byte[9];
-	private int byte_idx = 0;
-	private ReadState read_state = ReadState.RS_HEADER1;
+	private static final Command[] COMMANDS = Command.values();
+	private static final Ack[] ACKS = Ack.values();
+	private static final TempStatus[] TEMP_STATUSES = TempStatus.values();
+
+	private final byte[] rx_buffer = new byte[256];
+	private final ByteBuffer rx_view = ByteBuffer.wrap(rx_buffer);
+	private final PacketDecoder decoder = new PacketDecoder();
+	private final PacketDecoder.PacketHandler packet_handler = new PacketDecoder.PacketHandler() {
+		@Override
+		public void onPacket(byte[] packet, int length) {
+			onPacketRx(packet, length);
+		}
+	};
 	
-	private int temperature = 0;
-	private TempStatus temp_status = TempStatus.TS_UNKNOWN;
+	private volatile int temperature = 0;
+	private volatile TempStatus temp_status = TempStatus.TS_UNKNOWN;
+	private volatile long temperature_rx_time = 0;
 	private int sensor_offset;
 	private int lcd_backlight;
 	private int lcd_contrast;
 
 	private int poll_interval = 1000;
+	private volatile PollPolicy poll_policy = null;
+	private boolean log_packets = true;
+	private int command_timeout = 1000;
+	private int command_retries = 2;
+	
+	private final OutputScheduler output = new OutputScheduler(0);
+	private volatile boolean batch_output = true;
+	private ScheduledFuture<?> output_task = null;
+	
+	private volatile LinkHealth health = new LinkHealth();
+	private ScheduledFuture<?> link_task = null;		// Stale link check, or the next reconnect attempt
+	private ExecutorService reconnector = null;		// Reopens on its own thread, a hanging one mustn't stall a shared timer
+	private volatile boolean link_open = true;			// False after the port failed to reopen
+	private volatile int reconnect_attempt = 0;
+	private final SerialTransport.DataListener data_listener = new SerialTransport.DataListener() {
+		@Override
+		public void dataAvailable() {
+			processSerialData();
+		}
+	};
 	
 	public static class CommandCallback {
 	    void onResponse(Command cmd) {};
 	}
 
+	/**
+	 * Controller reply to a single command.
+	 */
+	public static class Response {
+		private final Command command;
+		private final short seq;
+		private final Ack ack;
+		private final byte[] data;
+
+		Response(byte[] packet_data, int length) {
+			command = COMMANDS[packet_data[2]];
+			seq = (short)((packet_data[3] & 0xFF) | ((packet_data[4] & 0xFF) << 8));
+			ack = ACKS[packet_data[5]];
+			data = Arrays.copyOfRange(packet_data, PacketDecoder.HEADER_LENGTH, length);
+		}
+
+		public Command getCommand() {
+			return command;
+		}
+
+		public short getSequence() {
+			return seq;
+		}
+
+		public Ack getAck() {
+			return ack;
+		}
+
+		public boolean isAck() {
+			return ack == Ack.ACK_ACK;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	// Command sent to the controller and not yet answered
+	private static class PendingCommand {
+		final Command cmd;
+		final short seq;
+		final byte[] command_bytes;
+		final CompletableFuture<Response> future = new CompletableFuture<Response>();
+		int retries_left;
+		volatile long sent_time;
+		volatile ScheduledFuture<?> timeout;
+
+		PendingCommand(Command cmd, short seq, byte[] command_bytes, int retries) {
+			this.cmd = cmd;
+			this.seq = seq;
+			this.command_bytes = command_bytes;
+			this.retries_left = retries;
+		}
+	}
+
+	private final Object tx_lock = new Object();
+	private final Object rx_lock = new Object();
+	private int next_seq = 1;
+	private final Map<Short, PendingCommand> in_flight = new ConcurrentHashMap<Short, PendingCommand>();
+
 	private CommandCallback on_response_cb = null;
+	private ControlMetrics metrics = null;
 	
 	public ReflowController(String port_name) throws IOException {
-		port = SerialPort.getCommPort(port_name);
-		port.setBaudRate(9600);
-		port.setFlowControl(SerialPort.FLOW_CONTROL_DISABLED);
-		port.setNumDataBits(8);
-		port.setNumStopBits(1);
-		port.setParity(SerialPort.NO_PARITY);
-		if (!port.openPort())
-			throw new IOException("Can't open serial port");
+		this(new JSerialCommTransport(port_name));
+		send(Command.CMD_READ_SETTINGS);
+		startPolling();
+	}
+	
+	/**
+	 * Talk to the controller over the given transport. Nothing is sent until startPolling() or send() is called.
+	 */
+	public ReflowController(SerialTransport transport) {
+		this(transport, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reflow-controller");
+				t.setDaemon(true);
+				return t;
+			}
+		}), true);
+	}
+	
+	/**
+	 * Run polling and command timeouts on a shared executor, it is not shut down on disconnect.
+	 */
+	public ReflowController(SerialTransport transport, ScheduledExecutorService executor) {
+		this(transport, executor, false);
+	}
+	
+	private ReflowController(SerialTransport transport, ScheduledExecutorService executor, boolean own_executor) {
+		port = transport;
+		timer = executor;
+		own_timer = own_executor;
 		
 		// Listen for incoming serial port data -------------------------------------------------------------------
-		port.addDataListener(new SerialPortDataListener() {
-			   @Override
-			   public int getListeningEvents() { return SerialPort.LISTENING_EVENT_DATA_AVAILABLE; }
-			   @Override
-			   public void serialEvent(SerialPortEvent event)
-			   {
-			      if (event.getEventType() != SerialPort.LISTENING_EVENT_DATA_AVAILABLE)
-			         return;
-			      processSerialData();
-			   }
-		});
+		port.setDataListener(data_listener);
+	}
+	
+	// Poll temperature to keep the link up ------------------------------------------------------------------
+	public synchronized void startPolling() {
+		if (poll_task != null || !connected)
+			return;
+		
+		schedulePoll(poll_generation, 0);
+		if (link_task == null)
+			scheduleLinkCheck(0);
+	}
+	
+	public synchronized void stopPolling() {
+		if (poll_task == null)
+			return;
 		
-		// Poll temperature to keep the link up ------------------------------------------------------------------
-		poller = new Thread() {
+		poll_task.cancel(false);
+		poll_task = null;
+		poll_generation++;
+	}
+	
+	private synchronized void schedulePoll(final int generation, long delay) {
+		poll_task = timer.schedule(new Runnable() {
+			@Override
 			public void run() {
-				while (!isInterrupted()) {
-					try {
-						sendCommand(Command.CMD_READ_TEMPERATURE, (short)0);
-						Thread.sleep(poll_interval);
-					} catch (Exception e) {
-					
-					}
+				try {
+					if (link_open)		// Not to a port that failed to reopen, the reconnect probes it
+						track(send(Command.CMD_READ_TEMPERATURE));
+				} catch (RuntimeException e) {
+					health.onWriteError();
+					System.err.println("Temperature poll failed: " + e);
 				}
-	        }
-		};
-		
-		sendCommand(Command.CMD_READ_SETTINGS, (short)0);
-		
-		poller.start();
+				synchronized (ReflowController.this) {
+					if (generation == poll_generation && connected)
+						schedulePoll(generation, nextPollInterval());
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private int nextPollInterval() {
+		PollPolicy policy = poll_policy;
+		return policy == null ? poll_interval : policy.getInterval();
+	}
+	
+	// Let the poll policy know whether polls get through
+	private void track(CompletableFuture<Response> poll) {
+		final PollPolicy policy = poll_policy;
+		if (policy == null)
+			return;
+		poll.whenComplete(new BiConsumer<Response, Throwable>() {
+			@Override
+			public void accept(Response response, Throwable error) {
+				if (error == null)
+					policy.onReply();
+				else
+					policy.onFailure();
+			}
+		});
+	}
+	
+	/**
+	 * Bring the next poll forward if the poll policy now asks for a shorter interval than the one waiting.
+	 */
+	public synchronized void pollSooner() {
+		if (poll_task == null || !connected)
+			return;
+		int interval = nextPollInterval();
+		if (poll_task.getDelay(TimeUnit.MILLISECONDS) <= interval)
+			return;
+		stopPolling();
+		schedulePoll(poll_generation, interval);
 	}
 	
 	public void disconnect() {
-		poller.stop();
-		port.closePort();
+		connected = false;
+		stopPolling();
+		synchronized (this) {
+			if (output_task != null)
+				output_task.cancel(false);
+			output_task = null;
+			if (link_task != null)
+				link_task.cancel(false);
+			link_task = null;
+			if (reconnector != null)
+				reconnector.shutdownNow();		// Drops a queued attempt and interrupts a running one
+			reconnector = null;
+		}
+		output.reset();
+		if (own_timer)
+			timer.shutdownNow();
+		port.close();
+		failInFlight("Controller disconnected");
+	}
+	
+	private void failInFlight(String reason) {
+		for (PendingCommand pending : in_flight.values()) {
+			if (!in_flight.remove(pending.seq, pending))
+				continue;
+			if (pending.timeout != null)
+				pending.timeout.cancel(false);
+			pending.future.completeExceptionally(new IOException(reason));
+		}
+	}
+	
+	// Link health --------------------------------------------------------------------------------------------
+	public LinkHealth getLinkHealth() {
+		return health;
+	}
+	
+	/**
+	 * Stale timeout and reconnect settings, set before polling starts.
+	 */
+	public void setLinkHealth(LinkHealth health) {
+		this.health = health;
+	}
+	
+	private synchronized void scheduleLinkCheck(long delay) {
+		if (!connected)
+			return;
+		try {
+			link_task = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					checkLink();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {		// Disconnected meanwhile
+		}
+	}
+	
+	// Detect a stale link, then reconnect with backoff until replies come back
+	private void checkLink() {
+		LinkHealth h = health;
+		long now = System.nanoTime();
+		long delay = Math.max(1, h.getStaleTimeout() / 4);
+		if (h.isStale(now) && h.markStale(now)) {
+			failSafe(h);
+			delay = 0;
+		} else if (!h.isUp() && h.isAutoReconnect()) {
+			startReconnect(h);		// Schedules the next check when done
+			return;
+		}
+		scheduleLinkCheck(delay);
+	}
+	
+	private synchronized void startReconnect(final LinkHealth h) {
+		if (!connected)
+			return;
+		if (reconnector == null) {
+			reconnector = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "reflow-reconnect");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		try {
+			reconnector.execute(new Runnable() {
+				@Override
+				public void run() {
+					long delay = reconnect(h);
+					if (delay >= 0)
+						scheduleLinkCheck(delay);
+				}
+			});
+		} catch (RejectedExecutionException e) {		// Disconnected meanwhile
+		}
+	}
+	
+	// The oven must not keep heating on its last duty cycle while we can't see the temperature
+	private void failSafe(LinkHealth h) {
+		System.err.println("Controller link stale, no reply for " + h.getSilence() + " ms, duty cycle set to 0");
+		output.reset();
+		output.offer(0);							// Written again once the link is back
+		send(Command.CMD_SET_DUTY_CYCLE, (byte)0);	// Gets through if only the replies are lost
+	}
+	
+	// One reopen of the port, returns how long to wait for a reply before the next attempt, -1 once disconnected
+	private long reconnect(LinkHealth h) {
+		if (!connected)
+			return -1;
+		int attempt = reconnect_attempt++;
+		h.markReconnecting();
+		failInFlight("Controller link lost");
+		link_open = false;
+		try {
+			port.reopen();
+			if (!connected) {		// disconnect() closed the port while it was being reopened
+				port.close();
+				return -1;
+			}
+			port.setDataListener(data_listener);
+			synchronized (rx_lock) {
+				decoder.reset();
+			}
+			link_open = true;
+			track(send(Command.CMD_READ_TEMPERATURE));
+		} catch (IOException e) {
+			System.err.println("Reconnect attempt " + (attempt + 1) + " failed: " + e.getMessage());
+		}
+		return Math.max(h.getBackoff(attempt), command_timeout);
+	}
+	
+	private void linkRestored(LinkHealth h) {
+		System.err.println("Controller link restored after " + h.getLastOutage() + " ms, " + reconnect_attempt + " reconnect attempts");
+		reconnect_attempt = 0;
+		flushOutput();
 	}
 	
+	/**
+	 * Queue a duty cycle with the output scheduler: unchanged values are not sent again, and while polling
+	 * the write goes out together with a temperature poll, which restarts the poll interval.
+	 */
 	public void setDutyCycle(int c) {
 		if (c < 0 || c > 100)
 			return;
-		sendCommand(Command.CMD_SET_DUTY_CYCLE, (short)0, (byte)c);
+		if (output.offer(c))
+			flushOutput();
+	}
+	
+	public OutputScheduler getOutputScheduler() {
+		return output;
+	}
+	
+	/**
+	 * Minimum time between duty cycle writes, ms. Values set in between are coalesced.
+	 */
+	public void setOutputInterval(int output_interval) {
+		output.setMinInterval(output_interval);
+	}
+	
+	/**
+	 * Send duty cycle writes together with a temperature poll in one serial write while polling.
+	 */
+	public void setBatchOutput(boolean batch_output) {
+		this.batch_output = batch_output;
+	}
+	
+	// Write the pending duty cycle now, or schedule it for when the minimum interval has passed
+	private void flushOutput() {
+		if (!health.isUp())
+			return;				// Held until the link is back
+		long delay = output.delay(System.currentTimeMillis());
+		if (delay < 0)
+			return;
+		if (delay == 0) {
+			writeOutput();
+			return;
+		}
+		
+		synchronized (this) {
+			if (output_task != null || !connected)
+				return;
+			try {
+				output_task = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (ReflowController.this) {
+							output_task = null;
+						}
+						writeOutput();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {		// Disconnected meanwhile
+			}
+		}
+	}
+	
+	private void writeOutput() {
+		final int duty = output.take(System.currentTimeMillis());
+		if (duty < 0) {
+			flushOutput();		// Another thread wrote just before, wait for the interval
+			return;
+		}
+		
+		PendingCommand write = prepare(Command.CMD_SET_DUTY_CYCLE,
+				new byte[] {HDR_BYTE_1, HDR_BYTE_2, (byte)Command.CMD_SET_DUTY_CYCLE.ordinal(), 0, 0, (byte)duty});
+		if (write == null) {
+			output.failed(duty);
+			return;
+		}
+		write.future.whenComplete(new BiConsumer<Response, Throwable>() {
+			@Override
+			public void accept(Response response, Throwable error) {
+				if (error != null) {
+					if (output.failed(duty) && connected)
+						flushOutput();		// Lost on the link, try again
+				} else if (!response.isAck())
+					output.failed(duty);	// Sent again with the next change only
+			}
+		});
+		
+		PendingCommand poll = null;
+		if (batch_output) {
+			synchronized (this) {
+				if (poll_task != null && connected) {
+					stopPolling();
+					poll = prepare(Command.CMD_READ_TEMPERATURE, new byte[] {HDR_BYTE_1, HDR_BYTE_2, (byte)Command.CMD_READ_TEMPERATURE.ordinal(), 0, 0});
+					if (poll != null)
+						track(poll.future);
+					schedulePoll(poll_generation, nextPollInterval());
+				}
+			}
+		}
+		transmit(write, poll);
 	}
 
 	public int getSensorOffset() {
@@ -96,7 +494,7 @@ public class ReflowController {
 	public void setSensorOffset(int sensor_offset) {
 		if (sensor_offset < -127 || sensor_offset > 127)
 			return;
-		sendCommand(Command.CMD_SET_SENSOR_OFFSET, (short)0, (byte)sensor_offset);
+		send(Command.CMD_SET_SENSOR_OFFSET, (byte)sensor_offset);
 		this.sensor_offset = sensor_offset;
 	}
 
@@ -107,7 +505,7 @@ public class ReflowController {
 	public void setLcdBacklight(int lcd_backlight) {
 		if (lcd_backlight < 0 || lcd_backlight > 100)
 			return;
-		sendCommand(Command.CMD_SET_LCD_BACKLIGHT, (short)0, (byte)lcd_backlight);
+		send(Command.CMD_SET_LCD_BACKLIGHT, (byte)lcd_backlight);
 		this.lcd_backlight = lcd_backlight;
 	}
 
@@ -118,7 +516,7 @@ public class ReflowController {
 	public void setLcdContrast(int lcd_contrast) {
 		if (lcd_contrast < 0 || lcd_contrast > 100)
 			return;
-		sendCommand(Command.CMD_SET_LCD_CONTRAST, (short)0, (byte)lcd_contrast);
+		send(Command.CMD_SET_LCD_CONTRAST, (byte)lcd_contrast);
 		this.lcd_contrast = lcd_contrast;
 	}
 
@@ -126,14 +524,59 @@ public class ReflowController {
 		return poll_interval;
 	}
 
+	/**
+	 * Fixed poll interval, used when no poll policy is set.
+	 */
 	public void setPollInterval(int poll_interval) {
 		this.poll_interval = poll_interval;
 	}
 
+	public PollPolicy getPollPolicy() {
+		return poll_policy;
+	}
+
+	/**
+	 * Adapt the poll interval to the run, null for the fixed interval.
+	 */
+	public void setPollPolicy(PollPolicy poll_policy) {
+		this.poll_policy = poll_policy;
+	}
+
+	public void setLogPackets(boolean log_packets) {
+		this.log_packets = log_packets;
+	}
+
+	public int getCommandTimeout() {
+		return command_timeout;
+	}
+
+	public void setCommandTimeout(int command_timeout) {
+		this.command_timeout = command_timeout;
+	}
+
+	public int getCommandRetries() {
+		return command_retries;
+	}
+
+	public void setCommandRetries(int command_retries) {
+		this.command_retries = command_retries;
+	}
+
+	public int getInFlightCount() {
+		return in_flight.size();
+	}
+
 	public int getTemperature() {
 		return temperature;
 	}
 
+	/**
+	 * System.nanoTime() of the last temperature reply, 0 if none received yet.
+	 */
+	public long getTemperatureTime() {
+		return temperature_rx_time;
+	}
+
 	public TempStatus getTempStatus() {
 		return temp_status;
 	}
@@ -142,61 +585,57 @@ public class ReflowController {
 		this.on_response_cb = on_response_cb;
 	}
 
+	public void setMetrics(ControlMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// Drain everything the port has in one read per chunk and let the decoder frame packets
 	private void processSerialData() {
-		byte[] db = new byte[1];
-		while (port.bytesAvailable() > 0) {
-			port.readBytes(db, 1);
-			packet_data[byte_idx++] = db[0];
-			switch(read_state) {
-				case RS_HEADER1:
-					if (packet_data[0] == HDR_BYTE_1) {
-						read_state = ReadState.RS_HEADER2;
-					} else {
-						byte_idx = 0;
-					}
-				break;
-				case RS_HEADER2:
-					if (packet_data[1] == HDR_BYTE_2) {
-						read_state = ReadState.RS_COMMAND;
-					} else {
-						read_state = ReadState.RS_HEADER1;
-						byte_idx = 0;
-					}
-				break;
-				case RS_COMMAND:
-					if (byte_idx == 6) { // 6 bytes of command
-						if (packet_data[2] == Command.CMD_READ_TEMPERATURE.ordinal() ||
-							packet_data[2] == Command.CMD_READ_SETTINGS.ordinal()) {
-							read_state = ReadState.RS_DATA;
-						} else {
-							onPacketRx();
-							byte_idx = 0;
-							read_state = ReadState.RS_HEADER1;
-						}
-					}
-				break;
-				case RS_DATA:
-					if (byte_idx == 9) {
-						onPacketRx();
-						byte_idx = 0;
-						read_state = ReadState.RS_HEADER1;
-					}
-				break;
+		synchronized (rx_lock) {
+			int available;
+			while ((available = port.bytesAvailable()) > 0) {
+				int read = port.readBytes(rx_buffer, Math.min(available, rx_buffer.length));
+				if (read <= 0)
+					break;
+				rx_view.clear();
+				rx_view.limit(read);
+				decoder.decode(rx_view, packet_handler);
 			}
+			health.setFramingErrors(decoder.getFramingErrors());
 		}
 	}
 	
-	private void onPacketRx() {
-		System.out.format("Got Packet %02X, data: %02X\n", packet_data[2], packet_data[6]);
-		if (Ack.values()[packet_data[5]] == Ack.ACK_NACK) 
+	private void onPacketRx(byte[] packet_data, int length) {
+		long rx_time = System.nanoTime();
+		LinkHealth h = health;
+		boolean restored = h.onReply(rx_time);
+		if (log_packets)
+			System.out.format("Got Packet %02X, data: %02X\n", packet_data[2], packet_data[6]);
+		
+		PendingCommand pending = takePending(packet_data);
+		if (pending != null) {
+			ScheduledFuture<?> timeout = pending.timeout;
+			if (timeout != null)		// Null when matched by the fallback before it was sent, its timeout then finds it gone
+				timeout.cancel(false);
+			if (metrics != null && pending.sent_time != 0)
+				metrics.link_rtt.record(rx_time - pending.sent_time);
+			pending.future.complete(new Response(packet_data, length));
+		}
+		
+		if (restored)
+			linkRestored(h);
+		
+		if (ACKS[packet_data[5]] == Ack.ACK_NACK) 
 			return;
 		
-		Command cmd = Command.values()[packet_data[2]]; 
+		Command cmd = COMMANDS[packet_data[2]]; 
 		
 		switch (cmd) {
 			case CMD_READ_TEMPERATURE:
 				temperature = (((int)packet_data[6]) & 0xFF) + ((((int)packet_data[7]) & 0xFF) << 8);
-				temp_status = TempStatus.values()[packet_data[8]];
+				temp_status = packet_data[8] >= 0 && packet_data[8] < TEMP_STATUSES.length ? 
+						TEMP_STATUSES[packet_data[8]] : TempStatus.TS_UNKNOWN;
+				temperature_rx_time = rx_time;
 			break;
 			case CMD_READ_SETTINGS:
 				sensor_offset = packet_data[6];
@@ -210,13 +649,130 @@ public class ReflowController {
 			on_response_cb.onResponse(cmd);
 	}
 
-	private void sendCommand(Command cmd, short seq) {
-		byte[] command_bytes = {HDR_BYTE_1, HDR_BYTE_2, (byte)cmd.ordinal(), (byte)(seq & 0xFF), (byte)(seq >> 8)};
-		port.writeBytes(command_bytes, 5);
+	/**
+	 * Send a command without parameter. The returned future completes with the controller reply,
+	 * or exceptionally with TimeoutException once all retries are exhausted.
+	 */
+	public CompletableFuture<Response> send(Command cmd) {
+		return submit(cmd, new byte[] {HDR_BYTE_1, HDR_BYTE_2, (byte)cmd.ordinal(), 0, 0});
+	}
+
+	public CompletableFuture<Response> send(Command cmd, byte param) {
+		return submit(cmd, new byte[] {HDR_BYTE_1, HDR_BYTE_2, (byte)cmd.ordinal(), 0, 0, param});
+	}
+
+	private CompletableFuture<Response> submit(Command cmd, byte[] command_bytes) {
+		PendingCommand pending = prepare(cmd, command_bytes);
+		if (pending == null) {
+			CompletableFuture<Response> future = new CompletableFuture<Response>();
+			future.completeExceptionally(new IOException("Controller disconnected"));
+			return future;
+		}
+		transmit(pending, null);
+		return pending.future;
+	}
+
+	// Number the command and register it as in flight, null when disconnected
+	private PendingCommand prepare(Command cmd, byte[] command_bytes) {
+		if (!connected)
+			return null;
+		
+		short seq = nextSequence();
+		command_bytes[3] = (byte)(seq & 0xFF);
+		command_bytes[4] = (byte)(seq >> 8);
+		
+		PendingCommand pending = new PendingCommand(cmd, seq, command_bytes, command_retries);
+		in_flight.put(seq, pending);
+		return pending;
+	}
+
+	// Send one command, or two in a single write when second isn't null. Retries go out one by one.
+	private void transmit(PendingCommand first, PendingCommand second) {
+		synchronized (tx_lock) {
+			if (!armTimeout(first)) {
+				if (second != null)
+					armTimeout(second);
+				return;
+			}
+			if (second == null) {
+				first.sent_time = System.nanoTime();
+				health.onRequest(first.sent_time);
+				if (port.writeBytes(first.command_bytes, first.command_bytes.length) < 0)
+					health.onWriteError();
+				return;
+			}
+			if (!armTimeout(second)) {
+				transmit(first, null);
+				return;
+			}
+			byte[] bytes = Arrays.copyOf(first.command_bytes, first.command_bytes.length + second.command_bytes.length);
+			System.arraycopy(second.command_bytes, 0, bytes, first.command_bytes.length, second.command_bytes.length);
+			first.sent_time = second.sent_time = System.nanoTime();
+			health.onRequest(first.sent_time);
+			if (port.writeBytes(bytes, bytes.length) < 0)
+				health.onWriteError();
+		}
+	}
+
+	private boolean armTimeout(final PendingCommand pending) {
+		try {
+			pending.timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					onTimeout(pending);
+				}
+			}, command_timeout, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (Exception e) {		// Timer is shut down, controller is disconnected
+			in_flight.remove(pending.seq);
+			pending.future.completeExceptionally(new IOException("Controller disconnected"));
+			return false;
+		}
+	}
+
+	private void onTimeout(PendingCommand pending) {
+		if (in_flight.get(pending.seq) != pending)
+			return;
+		
+		if (pending.retries_left > 0) {
+			pending.retries_left--;
+			transmit(pending, null);
+			return;
+		}
+		
+		in_flight.remove(pending.seq);
+		health.onTimeout();
+		pending.future.completeExceptionally(new TimeoutException(pending.cmd + " (seq " + (pending.seq & 0xFFFF) + ") timed out"));
+	}
+
+	// Match reply to in-flight command by sequence number, fall back to the oldest command of the same type
+	private PendingCommand takePending(byte[] packet_data) {
+		short seq = (short)((packet_data[3] & 0xFF) | ((packet_data[4] & 0xFF) << 8));
+		Command cmd = COMMANDS[packet_data[2]];
+		
+		PendingCommand pending = in_flight.get(seq);
+		if (pending != null && pending.cmd == cmd) {
+			in_flight.remove(seq);
+			return pending;
+		}
+		
+		PendingCommand oldest = null;
+		for (Iterator<PendingCommand> it = in_flight.values().iterator(); it.hasNext(); ) {
+			PendingCommand p = it.next();
+			if (p.cmd == cmd && (oldest == null || (short)(p.seq - oldest.seq) < 0))
+				oldest = p;
+		}
+		if (oldest != null && in_flight.remove(oldest.seq, oldest))
+			return oldest;
+		return null;
 	}
 
-	private void sendCommand(Command cmd, short seq, byte param) {
-		byte[] command_bytes = {HDR_BYTE_1, HDR_BYTE_2, (byte)cmd.ordinal(), (byte)(seq & 0xFF), (byte)(seq >> 8), param};
-		port.writeBytes(command_bytes, 6);
+	// Sequence number 0 is never used, replies with seq 0 come from firmware that doesn't echo it
+	private synchronized short nextSequence() {
+		short seq = (short)next_seq;
+		next_seq = (next_seq + 1) & 0xFFFF;
+		if (next_seq == 0)
+			next_seq = 1;
+		return seq;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,408 @@
+package reflow;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Headless entry point: runs the ovens of a ReflowStation without SWT and exposes a small local HTTP API.
+ *
+ * GET  /status                          ovens and their state, JSON
+ * POST /start?oven=name[&profile=file]  start a run
+ * POST /stop?oven=name                  stop a run, oven power goes to 0
+ * GET  /telemetry?oven=name             control steps of the current or last run, CSV
+ * GET  /stream?oven=name                live control steps, server-sent events
+ *
+ * Requests must name the daemon in their Host header (the bind address, localhost names when bound to loopback
+ * or any address, or one added with allowHost()), so DNS rebinding can't reach it. POSTs change the oven state:
+ * they are refused when they carry a foreign Origin, and need the X-Reflow-Token header when a token is set.
+ */
+public class ReflowDaemon {
+
+	private static final long HEARTBEAT_S = 15;		// A client that left is noticed by the second write after it
+
+	private final ReflowStation station;
+	private final HttpServer server;
+	private final int port;
+	private final Set<String> allowed_hosts = new HashSet<String>();		// host:port, lower case
+	private volatile byte[] token = null;
+	private final Set<EventStream> streams = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "reflow-sse-heartbeat");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// Writes every control step to one server-sent events client until it goes away.
+	// An idle oven publishes nothing, so a heartbeat comment finds clients that left meanwhile.
+	private class EventStream implements TelemetryBus.Subscriber {
+		private final HttpExchange exchange;
+		private final OutputStream out;
+		private volatile TelemetryBus.Subscription subscription;
+		private boolean closed = false;
+
+		EventStream(HttpExchange exchange) {
+			this.exchange = exchange;
+			out = exchange.getResponseBody();
+		}
+
+		@Override
+		public void onSample(TelemetrySample s) {
+			write(String.format(Locale.ROOT, "data: {\"time\":%.1f,\"temperature\":%d,\"target\":%.1f,\"power\":%d,\"status\":\"%s\"}\n\n",
+					s.getRunTime(), s.getMeasured(), s.getTarget(), s.getDutyCycle(), s.getTempStatus()));
+		}
+
+		void ping() {
+			write(": ping\n\n");
+		}
+
+		private void write(String event) {
+			synchronized (this) {
+				if (closed)
+					return;
+				try {
+					out.write(event.getBytes("UTF-8"));
+					out.flush();
+					return;
+				} catch (IOException e) {
+				}
+			}
+			close();
+		}
+
+		// Not under the lock: closing the subscription waits for its thread, which may be waiting for the lock
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			streams.remove(this);
+			exchange.close();
+			if (subscription != null)
+				subscription.close();
+		}
+	}
+
+	public ReflowDaemon(ReflowStation station, String bind_address, int port) throws IOException {
+		this.station = station;
+		this.port = port;
+		server = HttpServer.create(new InetSocketAddress(bind_address, port), 0);
+		allowHost(bind_address);
+		InetAddress bound = server.getAddress().getAddress();
+		if (bound.isLoopbackAddress() || bound.isAnyLocalAddress()) {
+			allowHost("localhost");
+			allowHost("127.0.0.1");
+			allowHost("[::1]");
+		}
+		server.createContext("/status", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!checkMethod(exchange, "GET"))
+					return;
+				respond(exchange, 200, "application/json", status());
+			}
+		});
+		server.createContext("/start", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!checkMethod(exchange, "POST"))
+					return;
+				ReflowStation.Oven oven = findOven(exchange);
+				if (oven == null)
+					return;
+				if (oven.isRunning()) {		// Don't swap the profile under a running loop
+					respond(exchange, 409, "text/plain", oven.getName() + " is already running\n");
+					return;
+				}
+
+				String profile_file = query(exchange).get("profile");
+				if (profile_file != null) {
+					try {
+						oven.setProfile(station.getProfileCache().get(profile_file));
+					} catch (IOException e) {
+						respond(exchange, 400, "text/plain", "Error loading profile " + profile_file + ": " + e.getMessage() + "\n");
+						return;
+					}
+				}
+				try {
+					oven.start();
+				} catch (IOException e) {
+					respond(exchange, 409, "text/plain", e.getMessage() + "\n");
+					return;
+				}
+				respond(exchange, 200, "text/plain", "Started " + oven.getName() + "\n");
+			}
+		});
+		server.createContext("/stop", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!checkMethod(exchange, "POST"))
+					return;
+				ReflowStation.Oven oven = findOven(exchange);
+				if (oven == null)
+					return;
+				oven.stop();
+				respond(exchange, 200, "text/plain", "Stopped " + oven.getName() + "\n");
+			}
+		});
+		server.createContext("/telemetry", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!checkMethod(exchange, "GET"))
+					return;
+				ReflowStation.Oven oven = findOven(exchange);
+				if (oven == null)
+					return;
+				StringBuilder sb = new StringBuilder("time,temperature,target,power\n");
+				oven.getHistory().appendCsv(sb);
+				respond(exchange, 200, "text/csv", sb.toString());
+			}
+		});
+		server.createContext("/stream", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!checkMethod(exchange, "GET"))
+					return;
+				ReflowStation.Oven oven = findOven(exchange);
+				if (oven == null)
+					return;
+				stream(exchange, oven);
+			}
+		});
+	}
+
+	private void stream(HttpExchange exchange, ReflowStation.Oven oven) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+
+		EventStream stream = new EventStream(exchange);
+		streams.add(stream);
+		stream.subscription = oven.getTelemetryBus().subscribe(oven.getName() + "-sse", stream);
+		synchronized (stream) {
+			if (!stream.closed)
+				return;
+		}
+		stream.subscription.close();		// Failed before the subscription was set
+	}
+
+	/**
+	 * Accept requests addressed to this host name, with or without a port. Default port is the daemon's.
+	 */
+	public void allowHost(String host) {
+		host = host.trim().toLowerCase(Locale.ROOT);
+		if (host.isEmpty())
+			return;
+		if (host.indexOf(':') >= 0 && !host.startsWith("["))
+			host = "[" + host + "]";		// Bare IPv6 address
+		allowed_hosts.add(hasPort(host) ? host : host + ":" + port);
+	}
+
+	/**
+	 * Require this token in the X-Reflow-Token header of every POST, null or empty for none.
+	 */
+	public void setToken(String token) {
+		this.token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public void start() {
+		server.start();
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (EventStream stream : streams)
+					stream.ping();
+			}
+		}, HEARTBEAT_S, HEARTBEAT_S, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		heartbeat.shutdownNow();
+		for (EventStream stream : streams)
+			stream.close();
+		server.stop(0);
+		station.shutdown();
+	}
+
+	private String status() {
+		StringBuilder sb = new StringBuilder("[");
+		boolean first = true;
+		for (ReflowStation.Oven oven : station.getOvens()) {
+			ReflowController controller = oven.getController();
+			Profile profile = oven.getProfile();
+			ControlLoop loop = oven.getControlLoop();
+			ReflowRun run = loop == null ? null : loop.getRun();
+
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append("{\"name\":").append(quote(oven.getName()));
+			sb.append(",\"running\":").append(oven.isRunning());
+			sb.append(",\"temperature\":").append(controller.getTemperature());
+			sb.append(",\"temp_status\":").append(quote(controller.getTempStatus().name()));
+			LinkHealth link = controller.getLinkHealth();
+			sb.append(",\"link\":{\"state\":").append(quote(link.getState().name()));
+			sb.append(",\"reply_rate\":").append(String.format(Locale.ROOT, "%.2f", link.getReplyRate()));
+			sb.append(",\"silence\":").append(link.getSilence());
+			sb.append(",\"timeouts\":").append(link.getTimeoutCount());
+			sb.append(",\"framing_errors\":").append(link.getFramingErrorCount());
+			sb.append(",\"reconnects\":").append(link.getReconnectCount()).append('}');
+			sb.append(",\"profile\":").append(profile == null ? "null" : quote(profile.getName()));
+			if (run != null) {
+				sb.append(",\"time\":").append(run.getTime());
+				sb.append(",\"target\":").append(run.getTarget());
+				sb.append(",\"power\":").append(run.getPower());
+				sb.append(",\"progress\":").append(run.getProgress());
+			}
+			sb.append('}');
+		}
+		return sb.append("]\n").toString();
+	}
+
+	private ReflowStation.Oven findOven(HttpExchange exchange) throws IOException {
+		String name = query(exchange).get("oven");
+		if (name == null && station.getOvens().size() == 1)
+			return station.getOvens().get(0);
+
+		ReflowStation.Oven oven = name == null ? null : station.getOven(name);
+		if (oven == null)
+			respond(exchange, 404, "text/plain", "Unknown oven\n");
+		return oven;
+	}
+
+	// Method, Host, and for POSTs Origin and token. Responds and returns false when the request is refused.
+	private boolean checkMethod(HttpExchange exchange, String method) throws IOException {
+		if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+			exchange.getResponseHeaders().set("Allow", method);
+			respond(exchange, 405, "text/plain", "Method not allowed\n");
+			return false;
+		}
+		if (!isAllowedHost(exchange.getRequestHeaders().getFirst("Host"))) {
+			respond(exchange, 403, "text/plain", "Unknown host\n");
+			return false;
+		}
+		if (!method.equals("POST"))
+			return true;
+
+		String origin = exchange.getRequestHeaders().getFirst("Origin");
+		if (origin != null && !(origin.regionMatches(true, 0, "http://", 0, 7) && isAllowedHost(origin.substring(7)))) {
+			respond(exchange, 403, "text/plain", "Foreign origin\n");
+			return false;
+		}
+		byte[] expected = token;
+		String given = exchange.getRequestHeaders().getFirst("X-Reflow-Token");
+		if (expected != null && (given == null || !MessageDigest.isEqual(expected, given.getBytes(StandardCharsets.UTF_8)))) {
+			respond(exchange, 401, "text/plain", "Missing or wrong token\n");
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isAllowedHost(String host) {
+		if (host == null)
+			return false;
+		host = host.trim().toLowerCase(Locale.ROOT);
+		return allowed_hosts.contains(hasPort(host) ? host : host + ":80");
+	}
+
+	private static boolean hasPort(String host) {
+		int colon = host.lastIndexOf(':');
+		return colon >= 0 && colon > host.lastIndexOf(']');
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null)
+			return params;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static void respond(HttpExchange exchange, int code, String content_type, String body) throws IOException {
+		byte[] data = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", content_type + "; charset=utf-8");
+		exchange.sendResponseHeaders(code, data.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(data);
+		out.close();
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Usage: ReflowDaemon [config file]
+	 */
+	public static void main(String[] args) {
+		String config_file = args.length > 0 ? args[0] : "reflow.properties";
+		Properties config = new Properties();
+		try {
+			FileInputStream input = new FileInputStream(config_file);
+			config.load(input);
+			input.close();
+		} catch (Exception ex) {
+			System.err.println("Error loading configuration data.");
+		}
+
+		try {
+			final ReflowDaemon daemon = new ReflowDaemon(ReflowStation.fromConfig(config),
+					config.getProperty("daemon.bind", "127.0.0.1"),
+					Integer.parseInt(config.getProperty("daemon.port", "8642")));
+			for (String host : config.getProperty("daemon.hosts", "").split(","))
+				daemon.allowHost(host);
+			daemon.setToken(config.getProperty("daemon.token", "").trim());
+			if (config.getProperty("daemon.token", "").trim().isEmpty())
+				System.err.println("No daemon.token set, /start and /stop are only guarded by the Host and Origin checks");
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					daemon.stop();
+				}
+			});
+			daemon.start();
+			System.out.println("Reflow daemon listening on " + config.getProperty("daemon.bind", "127.0.0.1") + ":" +
+					config.getProperty("daemon.port", "8642"));
+		} catch (IOException e) {
+			System.err.println("Error starting daemon: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package reflow;
+
+import reflow.ReflowController.Command;
+
+/**
+ * One pass of a profile: turns temperature samples into oven power using a control strategy.
+ * Keeps the run time and error statistics whatever the strategy.
+ * Driven by the GUI on every temperature reading, or headless on a simulated oven.
+ */
+public class ReflowRun {
+
+	private final Profile profile;
+	private final ProfileCurve curve;
+	private final ControlStrategy strategy;
+	private final Clock clock;
+	private final ProfileCurve.Cursor cursor;
+	private final ProfileCurve.Cursor lead_cursor;
+	private final ProfileCurve.Cursor setpoint_cursor;
+	private FeedForward feed_forward = null;
+	private double lookahead = 0;
+
+	private volatile boolean running = false;
+	private long start_time;
+	private long prev_time;
+	private double time = 0;
+	private double target = 0;
+	private int power = 0;
+	private double peak_temp = 0;
+
+	private double prev_e;
+	private double e_max;
+	private double e_min;
+	private double e_sq_int;
+
+	public ReflowRun(Profile profile, PidController pid) {
+		this(profile.getCurve(), pid);
+	}
+
+	public ReflowRun(ProfileCurve curve, PidController pid) {
+		this(curve, pid, pid.getClock());
+	}
+
+	public ReflowRun(ProfileCurve curve, ControlStrategy strategy, Clock clock) {
+		this.profile = curve.getProfile();
+		this.curve = curve;
+		this.strategy = strategy;
+		this.clock = clock;
+		cursor = curve.cursor();
+		lead_cursor = curve.cursor();
+		setpoint_cursor = curve.cursor();
+	}
+
+	/**
+	 * Add model based feed-forward to the controller output, null for none.
+	 */
+	public void setFeedForward(FeedForward feed_forward) {
+		this.feed_forward = feed_forward;
+	}
+
+	/**
+	 * Make the controller chase the setpoint this many seconds ahead, covering sensor and heater lag.
+	 */
+	public void setLookahead(double lookahead) {
+		this.lookahead = lookahead;
+	}
+
+	public void start() {
+		if (running)
+			return;
+		time = 0;
+		target = 0;
+		power = 0;
+		peak_temp = 0;
+		prev_e = 0;
+		e_max = 0;
+		e_min = 0;
+		e_sq_int = 0;
+		start_time = clock.currentTimeMillis();
+		prev_time = start_time;
+		strategy.reset();
+		running = true;
+	}
+
+	public void stop() {
+		running = false;
+		power = 0;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Process a temperature sample. Returns false once the profile is finished.
+	 */
+	public boolean step(double temperature) {
+		if (!running)
+			return false;
+
+		long now = clock.currentTimeMillis();
+		time = (now - start_time) / 1000.0;
+		if (time > curve.getMaxTime()) {
+			stop();
+			return false;
+		}
+		double dt = (now - prev_time) / 1000.0;
+		if (now == prev_time || dt < strategy.getMinDt())	// Too close to the last step, its interval goes to the next one
+			return true;
+		prev_time = now;
+
+		if (temperature > peak_temp)
+			peak_temp = temperature;
+
+		target = cursor.getTemperature(time + lookahead);
+		double ff = 0;
+		if (feed_forward != null) {
+			double t = time + feed_forward.getLead();
+			ff = feed_forward.power(lead_cursor.getTemperature(t), lead_cursor.getSlope(t));
+		}
+		power = strategy.step(time, dt, temperature, target, ff);
+
+		// Tracking error against the profile itself, not the setpoint shifted by the lookahead
+		double e = (lookahead == 0 ? target : setpoint_cursor.getTemperature(time)) - temperature;
+		if (e > e_max)
+			e_max = e;
+		if (e < e_min)
+			e_min = e;
+		e_sq_int += (e * e + prev_e * prev_e) / 2 * dt;
+		prev_e = e;
+		return true;
+	}
+
+	public Profile getProfile() {
+		return profile;
+	}
+
+	public ProfileCurve getCurve() {
+		return curve;
+	}
+
+	public ControlStrategy getStrategy() {
+		return strategy;
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public double getTarget() {
+		return target;
+	}
+
+	public int getPower() {
+		return power;
+	}
+
+	public double getPeakTemperature() {
+		return peak_temp;
+	}
+
+	/**
+	 * Largest error below the setpoint, °C.
+	 */
+	public double getMaxError() {
+		return e_max;
+	}
+
+	/**
+	 * Largest overshoot as a negative error, °C.
+	 */
+	public double getMinError() {
+		return e_min;
+	}
+
+	/**
+	 * Integral of the squared error, °C^2 s.
+	 */
+	public double getIntegralError() {
+		return e_sq_int;
+	}
+
+	public double getProgress() {
+		double max_time = curve.getMaxTime();
+		return max_time <= 0 ? 0 : time / max_time;
+	}
+
+	/**
+	 * Run the whole profile against a simulated oven on a virtual clock, as fast as the CPU allows.
+	 * The model should be fresh, it is owned by the run.
+	 */
+	public static ReflowRun simulate(Profile profile, double p, double i, double d, ThermalModel model, long period_ms) {
+		return simulate(profile.getCurve(), p, i, d, model, period_ms);
+	}
+
+	public static ReflowRun simulate(ProfileCurve curve, double p, double i, double d, ThermalModel model, long period_ms) {
+		return simulate(curve, p, i, d, null, 0, model, period_ms);
+	}
+
+	public static ReflowRun simulate(ProfileCurve curve, double p, double i, double d, FeedForward feed_forward,
+			double lookahead, ThermalModel model, long period_ms) {
+		return simulate(curve, p, i, d, PidController.Options.DEFAULT, feed_forward, lookahead, model, period_ms);
+	}
+
+	public static ReflowRun simulate(ProfileCurve curve, double p, double i, double d, PidController.Options options,
+			FeedForward feed_forward, double lookahead, ThermalModel model, long period_ms) {
+		return simulate(curve, ControlStrategy.pid(ControlStrategy.Kind.INCREMENTAL, p, i, d, options),
+				feed_forward, lookahead, model, period_ms);
+	}
+
+	/**
+	 * The strategy is reset by the run and must not be shared with another one.
+	 */
+	public static ReflowRun simulate(ProfileCurve curve, ControlStrategy strategy, FeedForward feed_forward,
+			double lookahead, ThermalModel model, long period_ms) {
+		VirtualClock clock = new VirtualClock();
+		ReflowController controller = new ReflowController(new SimulatedOven(model, clock));
+		controller.setLogPackets(false);
+
+		ReflowRun run = new ReflowRun(curve, strategy, clock);
+		run.setFeedForward(feed_forward);
+		run.setLookahead(lookahead);
+		run.start();
+		try {
+			while (true) {
+				clock.advance(period_ms);
+				controller.send(Command.CMD_READ_TEMPERATURE).join();
+				if (!run.step(controller.getTemperature()))
+					break;
+				controller.setDutyCycle(run.getPower());
+			}
+			controller.setDutyCycle(0);
+		} finally {
+			controller.disconnect();
+		}
+		return run;
+	}
+}
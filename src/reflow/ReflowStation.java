@@ -0,0 +1,354 @@
+package reflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import reflow.ReflowController.Command;
+
+/**
+ * Drives several ovens from one process. Every oven has its own controller, profile, PID gains,
+ * polling schedule and telemetry; polling, command timeouts and control loops of all ovens
+ * share one bounded thread pool.
+ */
+public class ReflowStation {
+
+	public class Oven {
+		private final String name;
+		private final ReflowController controller;
+		private final ControlMetrics metrics = new ControlMetrics();
+		private final SampleHistory history = new SampleHistory(3600);
+		private final TelemetryBus bus = new TelemetryBus(1024);
+		private final TelemetryBus.Subscription history_subscription;
+		private Profile profile;
+		private ProfileCurve.Interpolation interpolation = ProfileCurve.Interpolation.LINEAR;
+		private double max_rate = 3;
+		private double p = 1, i = 0, d = 0;
+		private Properties control_config = new Properties();
+		private FeedForward feed_forward = null;
+		private double lookahead = 0;
+		private long control_period = 1000;
+		private String telemetry_dir = null;
+
+		private ControlLoop loop = null;
+		private TelemetryRecorder recorder = null;
+		private TelemetryBus.Subscription recorder_subscription = null;
+
+		Oven(String name, SerialTransport transport) {
+			this.name = name;
+			controller = new ReflowController(transport, executor);
+			controller.setLogPackets(false);
+			controller.setMetrics(metrics);
+			history_subscription = bus.subscribe(name + "-history", new TelemetryBus.Subscriber() {
+				@Override
+				public void onSample(TelemetrySample sample) {
+					history.add(sample.getRunTime(), sample.getMeasured(), sample.getTarget(), sample.getDutyCycle());
+				}
+			});
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public ReflowController getController() {
+			return controller;
+		}
+
+		public ControlMetrics getMetrics() {
+			return metrics;
+		}
+
+		/**
+		 * Every control step of this oven is published here.
+		 */
+		public TelemetryBus getTelemetryBus() {
+			return bus;
+		}
+
+		/**
+		 * Control steps of the current or last run.
+		 */
+		public SampleHistory getHistory() {
+			return history;
+		}
+
+		public synchronized Profile getProfile() {
+			return profile;
+		}
+
+		public synchronized void setProfile(Profile profile) {
+			this.profile = profile;
+		}
+
+		/**
+		 * How the setpoint is drawn through the profile points, max_rate (°C/s) applies to RAMP.
+		 */
+		public synchronized void setInterpolation(ProfileCurve.Interpolation interpolation, double max_rate) {
+			this.interpolation = interpolation;
+			this.max_rate = max_rate;
+		}
+
+		public synchronized void setPid(double p, double i, double d) {
+			this.p = p;
+			this.i = i;
+			this.d = d;
+		}
+
+		/**
+		 * Settings for ControlStrategy.fromConfig: control.strategy, pid.* options, model.* and mpc.*.
+		 */
+		public synchronized void setControlConfig(Properties control_config) {
+			this.control_config = control_config;
+		}
+
+		/**
+		 * Model based feed-forward (null for none) and how many seconds ahead the PID setpoint is read.
+		 */
+		public synchronized void setFeedForward(FeedForward feed_forward, double lookahead) {
+			this.feed_forward = feed_forward;
+			this.lookahead = lookahead;
+		}
+
+		public synchronized void setControlPeriod(long control_period) {
+			this.control_period = control_period;
+		}
+
+		/**
+		 * Directory for telemetry files, null disables recording.
+		 */
+		public synchronized void setTelemetryDir(String telemetry_dir) {
+			this.telemetry_dir = telemetry_dir;
+		}
+
+		public synchronized ControlLoop getControlLoop() {
+			return loop;
+		}
+
+		public synchronized boolean isRunning() {
+			return loop != null && loop.isRunning();
+		}
+
+		public synchronized void start() throws IOException {
+			if (isRunning())
+				return;
+			if (profile == null)
+				throw new IOException("No profile loaded for " + name);
+
+			ProfileCurve curve = new ProfileCurve(profile, interpolation, max_rate);
+			ReflowRun run = new ReflowRun(curve, ControlStrategy.fromConfig(control_config, p, i, d, curve), clock);
+			run.setFeedForward(feed_forward);
+			run.setLookahead(lookahead);
+			final ControlLoop l = new ControlLoop(controller, run, control_period, clock, executor);
+			l.setMetrics(metrics);
+			l.setTelemetryBus(bus);
+			recorder = openRecorder();
+			if (recorder != null)
+				recorder_subscription = bus.subscribe(name + "-recorder", recorder);
+			history.clear();
+			l.setListener(new ControlLoop.Listener() {
+				@Override
+				public void onStep(double time, int temperature, double target, int power, boolean running) {
+					if (!running)
+						finished(l);
+				}
+			});
+			loop = l;
+			l.start();
+		}
+
+		public synchronized void stop() {
+			if (loop == null)
+				return;
+			loop.stop();
+			controller.setDutyCycle(0);
+			finished(loop);
+		}
+
+		private synchronized void finished(ControlLoop l) {
+			if (l != loop)
+				return;
+			if (recorder_subscription != null) {
+				recorder_subscription.close();
+				recorder_subscription = null;
+			}
+			if (recorder != null) {
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					System.err.println(name + ": error closing telemetry file");
+				}
+				recorder = null;
+			}
+		}
+
+		private TelemetryRecorder openRecorder() {
+			if (telemetry_dir == null)
+				return null;
+
+			File dir = new File(telemetry_dir);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				System.err.println(name + ": error creating telemetry directory " + dir);
+				return null;
+			}
+			String file = name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".rlog";
+			try {
+				return new TelemetryRecorder(new File(dir, file).getPath());
+			} catch (IOException e) {
+				System.err.println(name + ": error creating telemetry file " + file);
+				return null;
+			}
+		}
+
+		void close() {
+			stop();
+			history_subscription.close();
+			controller.disconnect();
+			metrics.unregister();
+		}
+	}
+
+	private final ScheduledExecutorService executor;
+	private final Clock clock;
+	private final Map<String, Oven> ovens = new LinkedHashMap<String, Oven>();
+	private final ProfileCache profiles = new ProfileCache(64);
+
+	public ReflowStation(int threads) {
+		this(threads, Clock.SYSTEM);
+	}
+
+	public ReflowStation(int threads, Clock clock) {
+		this.clock = clock;
+		final AtomicInteger thread_count = new AtomicInteger();
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reflow-station-" + thread_count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.MAX_PRIORITY);
+				return t;
+			}
+		});
+		pool.setRemoveOnCancelPolicy(true);		// Command timeouts are cancelled all the time
+		executor = pool;
+	}
+
+	public synchronized Oven addOven(String name, SerialTransport transport) {
+		if (ovens.containsKey(name))
+			throw new IllegalArgumentException("Oven " + name + " already exists");
+
+		Oven oven = new Oven(name, transport);
+		ovens.put(name, oven);
+		oven.metrics.register(name);
+		return oven;
+	}
+
+	public synchronized void removeOven(String name) {
+		Oven oven = ovens.remove(name);
+		if (oven != null)
+			oven.close();
+	}
+
+	public synchronized Oven getOven(String name) {
+		return ovens.get(name);
+	}
+
+	public synchronized List<Oven> getOvens() {
+		return new ArrayList<Oven>(ovens.values());
+	}
+
+	/**
+	 * Profiles loaded by any oven of the station.
+	 */
+	public ProfileCache getProfileCache() {
+		return profiles;
+	}
+
+	public synchronized void shutdown() {
+		for (Oven oven : ovens.values())
+			oven.close();
+		ovens.clear();
+		executor.shutdown();
+		profiles.close();
+	}
+
+	/**
+	 * Set up ovens listed in station.ovens, each configured by <name>.* keys falling back to the global ones.
+	 * A port named "sim" gets a simulated oven. Without station.ovens a single oven "oven" is created.
+	 */
+	public static ReflowStation fromConfig(Properties config) throws IOException {
+		String[] names = config.getProperty("station.ovens", "oven").split(",");
+		int threads = Integer.parseInt(config.getProperty("station.threads",
+				Integer.toString(Math.min(names.length * 2, Runtime.getRuntime().availableProcessors()))));
+		ReflowStation station = new ReflowStation(Math.max(1, threads));
+
+		try {
+			for (String n : names) {
+				String name = n.trim();
+				Properties oven_config = ovenConfig(config, name);
+				String port = property(config, name, "controller.port", "/dev/rfcomm1");
+				SerialTransport transport = port.equals("sim") ?
+						new SimulatedOven(ThermalModel.fromConfig(oven_config)) : new JSerialCommTransport(port);
+
+				Oven oven = station.addOven(name, transport);
+				oven.setPid(
+						Double.parseDouble(property(config, name, "pid.p", "1")),
+						Double.parseDouble(property(config, name, "pid.i", "0")),
+						Double.parseDouble(property(config, name, "pid.d", "0")));
+				oven.setControlConfig(oven_config);
+				oven.setInterpolation(ProfileCurve.Interpolation.parse(property(config, name, "profile.interpolation", "linear")),
+						Double.parseDouble(property(config, name, "profile.max_rate", "3")));
+				oven.setFeedForward(FeedForward.fromConfig(oven_config),
+						Double.parseDouble(property(config, name, "control.lookahead", "0")));
+				oven.setControlPeriod(Long.parseLong(property(config, name, "control.period", "1000")));
+				oven.setTelemetryDir(config.getProperty("telemetry.dir", "telemetry"));
+
+				String profile_file = property(config, name, "profile.default", "lead-free.pfl");
+				try {
+					oven.setProfile(station.profiles.get(profile_file));
+				} catch (IOException e) {
+					System.err.println(name + ": error loading profile " + profile_file + ": " + e.getMessage());
+				}
+
+				ReflowController controller = oven.getController();
+				controller.setPollInterval(Integer.parseInt(property(config, name, "poll_interval", "1000")));
+				controller.setPollPolicy(PollPolicy.fromConfig(oven_config));
+				controller.setLinkHealth(LinkHealth.fromConfig(oven_config));
+				controller.setOutputInterval(Integer.parseInt(property(config, name, "output.min_interval", "0")));
+				controller.setBatchOutput(Boolean.parseBoolean(property(config, name, "output.batch", "true")));
+				controller.send(Command.CMD_READ_SETTINGS);
+				controller.startPolling();
+			}
+		} catch (IOException e) {
+			station.shutdown();
+			throw e;
+		}
+		return station;
+	}
+
+	static String property(Properties config, String oven, String key, String def) {
+		return config.getProperty(oven + "." + key, config.getProperty(key, def));
+	}
+
+	// Global keys with <oven>.* keys taking precedence, for code reading a whole group such as model.*
+	static Properties ovenConfig(Properties config, String oven) {
+		Properties result = new Properties();
+		String prefix = oven + ".";
+		for (String key : config.stringPropertyNames())
+			result.setProperty(key, config.getProperty(key));
+		for (String key : config.stringPropertyNames())
+			if (key.startsWith(prefix))
+				result.setProperty(key.substring(prefix.length()), config.getProperty(key));
+		return result;
+	}
+}
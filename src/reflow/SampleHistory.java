@@ -0,0 +1,54 @@
+package reflow;
+
+import java.util.Locale;
+
+/**
+ * Fixed size history of the most recent control steps, kept in primitive arrays.
+ */
+public class SampleHistory {
+
+	private final double[] time;
+	private final int[] temperature;
+	private final double[] target;
+	private final int[] power;
+	private int next = 0;
+	private int size = 0;
+
+	public SampleHistory(int capacity) {
+		time = new double[capacity];
+		temperature = new int[capacity];
+		target = new double[capacity];
+		power = new int[capacity];
+	}
+
+	public synchronized void add(double t, int temp, double target_temp, int pwr) {
+		time[next] = t;
+		temperature[next] = temp;
+		target[next] = target_temp;
+		power[next] = pwr;
+		next = (next + 1) % time.length;
+		if (size < time.length)
+			size++;
+	}
+
+	public synchronized void clear() {
+		next = 0;
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Append samples, oldest first, as CSV lines: time, temperature, target, power.
+	 */
+	public synchronized void appendCsv(StringBuilder sb) {
+		int idx = (next - size + time.length) % time.length;
+		for (int c = 0; c < size; c++) {
+			sb.append(time[idx]).append(',').append(temperature[idx]).append(',')
+				.append(String.format(Locale.ROOT, "%.1f", target[idx])).append(',').append(power[idx]).append('\n');
+			idx = (idx + 1) % time.length;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package reflow;
+
+import java.io.IOException;
+
+/**
+ * Byte link to the reflow controller. Implemented on top of a real serial port
+ * and by the in-process oven simulator.
+ */
+public interface SerialTransport {
+
+	public interface DataListener {
+		void dataAvailable();
+	}
+
+	int bytesAvailable();
+
+	int readBytes(byte[] buffer, int length);
+
+	int writeBytes(byte[] buffer, int length);
+
+	void setDataListener(DataListener listener);
+
+	void close();
+
+	/**
+	 * Close and open the link again, e.g. after it went stale. The data listener has to be set again afterwards.
+	 */
+	void reopen() throws IOException;
+}
@@ -0,0 +1,202 @@
+package reflow;
+
+import java.nio.ByteBuffer;
+
+import reflow.ReflowController.Ack;
+import reflow.ReflowController.Command;
+import reflow.ReflowController.TempStatus;
+
+/**
+ * In-process awreflow2 controller backed by a thermal model.
+ * Replies are produced synchronously from writeBytes(), so a run can go as fast as the CPU allows.
+ */
+public class SimulatedOven implements SerialTransport {
+
+	private static final Command[] COMMANDS = Command.values();
+
+	private final ThermalModel model;
+	private final Clock clock;
+
+	private final byte[] cmd_data = new byte[6];
+	private int cmd_idx = 0;
+
+	private final ByteBuffer rx = ByteBuffer.allocate(1024);
+	private DataListener listener;
+	private long last_update;
+	private boolean closed = false;
+
+	private int duty_cycle = 0;
+	private int sensor_offset = 0;
+	private int lcd_backlight = 100;
+	private int lcd_contrast = 50;
+	private TempStatus temp_status = TempStatus.TS_OK;
+
+	public SimulatedOven(ThermalModel model) {
+		this(model, Clock.SYSTEM);
+	}
+
+	/**
+	 * The model is advanced to the clock time whenever a command arrives.
+	 */
+	public SimulatedOven(ThermalModel model, Clock clock) {
+		this.model = model;
+		this.clock = clock;
+		last_update = clock.nanoTime();
+	}
+
+	public ThermalModel getModel() {
+		return model;
+	}
+
+	public int getDutyCycle() {
+		return duty_cycle;
+	}
+
+	public void setTempStatus(TempStatus temp_status) {
+		this.temp_status = temp_status;
+	}
+
+	@Override
+	public synchronized int bytesAvailable() {
+		return rx.position();
+	}
+
+	@Override
+	public synchronized int readBytes(byte[] buffer, int length) {
+		rx.flip();
+		int n = Math.min(length, rx.remaining());
+		rx.get(buffer, 0, n);
+		rx.compact();
+		return n;
+	}
+
+	@Override
+	public int writeBytes(byte[] buffer, int length) {
+		boolean replied = false;
+		synchronized (this) {
+			if (closed)
+				return -1;
+			for (int c = 0; c < length; c++)
+				replied |= receive(buffer[c]);
+		}
+
+		DataListener l = listener;
+		if (replied && l != null)
+			l.dataAvailable();
+		return length;
+	}
+
+	@Override
+	public void setDataListener(DataListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		listener = null;
+	}
+
+	@Override
+	public synchronized void reopen() {
+		closed = false;
+		listener = null;
+		cmd_idx = 0;
+		rx.clear();
+	}
+
+	// Command framing, returns true when a reply was queued
+	private boolean receive(byte b) {
+		cmd_data[cmd_idx++] = b;
+
+		if (cmd_idx == 1 && b != ReflowController.HDR_BYTE_1) {
+			cmd_idx = 0;
+		} else if (cmd_idx == 2 && b != ReflowController.HDR_BYTE_2) {
+			cmd_idx = b == ReflowController.HDR_BYTE_1 ? 1 : 0;
+		} else if (cmd_idx == 5 && !hasParam(cmd_data[2])) {
+			cmd_idx = 0;
+			return execute();
+		} else if (cmd_idx == 6) {
+			cmd_idx = 0;
+			return execute();
+		}
+		return false;
+	}
+
+	private static boolean hasParam(byte cmd) {
+		return cmd == Command.CMD_SET_DUTY_CYCLE.ordinal() || cmd == Command.CMD_SET_SENSOR_OFFSET.ordinal() ||
+				cmd == Command.CMD_SET_LCD_BACKLIGHT.ordinal() || cmd == Command.CMD_SET_LCD_CONTRAST.ordinal();
+	}
+
+	private boolean execute() {
+		updateModel();
+
+		byte cmd = cmd_data[2];
+		if (cmd < 0 || cmd >= COMMANDS.length) {
+			reply(cmd, Ack.ACK_NACK);
+			return true;
+		}
+
+		int param = cmd_data[5];
+		switch (COMMANDS[cmd]) {
+			case CMD_READ_TEMPERATURE:
+				int t = (int)Math.round(model.getTemperature()) + sensor_offset;
+				if (t < 0)
+					t = 0;
+				reply(cmd, Ack.ACK_ACK, (byte)(t & 0xFF), (byte)(t >> 8), (byte)temp_status.ordinal());
+			break;
+			case CMD_READ_SETTINGS:
+				reply(cmd, Ack.ACK_ACK, (byte)sensor_offset, (byte)lcd_backlight, (byte)lcd_contrast);
+			break;
+			case CMD_SET_DUTY_CYCLE:
+				if (param < 0 || param > 100) {
+					reply(cmd, Ack.ACK_NACK);
+				} else {
+					duty_cycle = param;
+					model.setDutyCycle(param);
+					reply(cmd, Ack.ACK_ACK);
+				}
+			break;
+			case CMD_SET_SENSOR_OFFSET:
+				sensor_offset = param;
+				reply(cmd, Ack.ACK_ACK);
+			break;
+			case CMD_SET_LCD_BACKLIGHT:
+				if (param < 0 || param > 100) {
+					reply(cmd, Ack.ACK_NACK);
+				} else {
+					lcd_backlight = param;
+					reply(cmd, Ack.ACK_ACK);
+				}
+			break;
+			case CMD_SET_LCD_CONTRAST:
+				if (param < 0 || param > 100) {
+					reply(cmd, Ack.ACK_NACK);
+				} else {
+					lcd_contrast = param;
+					reply(cmd, Ack.ACK_ACK);
+				}
+			break;
+			default:
+				reply(cmd, Ack.ACK_NACK);
+		}
+		return true;
+	}
+
+	private void reply(byte cmd, Ack ack, byte... data) {
+		if (rx.remaining() < PacketDecoder.MAX_PACKET_LENGTH)
+			return;					// Host isn't reading, drop the reply like a full UART buffer would
+
+		rx.put(ReflowController.HDR_BYTE_1).put(ReflowController.HDR_BYTE_2).put(cmd);
+		rx.put(cmd_data[3]).put(cmd_data[4]).put((byte)ack.ordinal());
+		// Replies to read commands always carry data bytes, zeroes on NACK
+		if (PacketDecoder.hasData(cmd))
+			rx.put(data.length == PacketDecoder.DATA_LENGTH ? data : new byte[PacketDecoder.DATA_LENGTH]);
+	}
+
+	private void updateModel() {
+		long now = clock.nanoTime();
+		model.advance((now - last_update) / 1e9);
+		last_update = now;
+	}
+}
@@ -0,0 +1,210 @@
+package reflow;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import reflow.ReflowController.TempStatus;
+
+/**
+ * Single producer, many consumer broadcast of control steps over a preallocated ring (Disruptor style).
+ * The producer never waits: every subscriber reads at its own pace on its own thread, and one that
+ * falls more than a ring behind skips ahead and counts the lost samples. Idle subscribers park until
+ * the next publish wakes them.
+ */
+public class TelemetryBus {
+
+	public interface Subscriber {
+		void onSample(TelemetrySample sample);
+	}
+
+	// Slot fields are volatile so consumers can detect a concurrent overwrite (seqlock)
+	private static class Slot {
+		volatile long sequence = -1;		// Sequence of the sample held, -1 while being written
+		volatile long time_ms;
+		volatile double run_time;
+		volatile int measured;
+		volatile double target;
+		volatile int duty;
+		volatile TempStatus status;
+		volatile double p_term, i_term, d_term;
+	}
+
+	private final Slot[] ring;
+	private final int mask;
+	private final AtomicLong cursor = new AtomicLong(-1);	// Last published sequence
+	private volatile Subscription[] subscriptions = new Subscription[0];	// Copied on change, publish doesn't allocate
+
+	/**
+	 * @param capacity ring size, rounded up to a power of two
+	 */
+	public TelemetryBus(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		ring = new Slot[size];
+		for (int c = 0; c < size; c++)
+			ring[c] = new Slot();
+		mask = size - 1;
+	}
+
+	/**
+	 * Publish a control step. Must be called from a single thread.
+	 */
+	public void publish(long time_ms, double run_time, int measured, double target, int duty,
+			TempStatus status, double p_term, double i_term, double d_term) {
+		long seq = cursor.get() + 1;
+		Slot slot = ring[(int)(seq & mask)];
+		slot.sequence = -1;
+		slot.time_ms = time_ms;
+		slot.run_time = run_time;
+		slot.measured = measured;
+		slot.target = target;
+		slot.duty = duty;
+		slot.status = status;
+		slot.p_term = p_term;
+		slot.i_term = i_term;
+		slot.d_term = d_term;
+		slot.sequence = seq;
+		cursor.set(seq);
+
+		Subscription[] s = subscriptions;
+		for (int c = 0; c < s.length; c++)
+			if (s[c].parked)
+				LockSupport.unpark(s[c].thread);
+	}
+
+	public long getPublishedCount() {
+		return cursor.get() + 1;
+	}
+
+	/**
+	 * Attach a subscriber on its own daemon thread. It receives samples published from now on.
+	 */
+	public Subscription subscribe(String name, Subscriber subscriber) {
+		Subscription subscription = new Subscription(name, subscriber, cursor.get() + 1);
+		synchronized (this) {
+			Subscription[] s = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+			s[s.length - 1] = subscription;
+			subscriptions = s;
+		}
+		subscription.thread.start();
+		return subscription;
+	}
+
+	private synchronized void remove(Subscription subscription) {
+		Subscription[] s = subscriptions;
+		for (int c = 0; c < s.length; c++) {
+			if (s[c] == subscription) {
+				Subscription[] rest = new Subscription[s.length - 1];
+				System.arraycopy(s, 0, rest, 0, c);
+				System.arraycopy(s, c + 1, rest, c, s.length - c - 1);
+				subscriptions = rest;
+				return;
+			}
+		}
+	}
+
+	public class Subscription {
+		private final Subscriber subscriber;
+		private final Thread thread;
+		private final TelemetrySample sample = new TelemetrySample();
+		private final AtomicLong lost = new AtomicLong();
+		private final AtomicLong delivered = new AtomicLong();
+		private volatile long next;
+		private volatile boolean closing = false;
+		private volatile boolean parked = false;
+
+		Subscription(String name, Subscriber subscriber, long start) {
+			this.subscriber = subscriber;
+			next = start;
+			thread = new Thread("telemetry-" + name) {
+				public void run() {
+					consume();
+				}
+			};
+			thread.setDaemon(true);
+		}
+
+		public long getLostCount() {
+			return lost.get();
+		}
+
+		public long getDeliveredCount() {
+			return delivered.get();
+		}
+
+		/**
+		 * Samples published but not yet delivered to this subscriber.
+		 */
+		public long getBacklog() {
+			return Math.max(0, cursor.get() + 1 - next);
+		}
+
+		/**
+		 * Deliver what's already published, then stop the subscriber thread.
+		 */
+		public void close() {
+			closing = true;
+			remove(this);
+			LockSupport.unpark(thread);
+			if (Thread.currentThread() != thread) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void consume() {
+			long seq = next;
+			while (true) {
+				boolean last = closing;
+				long available = cursor.get();
+
+				while (seq <= available) {
+					if (available - seq >= ring.length) {		// Lapped by the producer
+						long skip_to = available - ring.length + 1;
+						lost.addAndGet(skip_to - seq);
+						seq = skip_to;
+					}
+					if (read(seq)) {
+						try {
+							subscriber.onSample(sample);
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+						delivered.incrementAndGet();
+					} else {
+						lost.incrementAndGet();
+					}
+					next = ++seq;
+				}
+
+				if (last)
+					break;
+				// Publish unparks after moving the cursor, so checking it again after setting parked can't miss one
+				parked = true;
+				if (cursor.get() == available && !closing)
+					LockSupport.park(this);
+				parked = false;
+			}
+		}
+
+		// Copy the slot, false if the producer overwrote it meanwhile
+		private boolean read(long seq) {
+			Slot slot = ring[(int)(seq & mask)];
+			if (slot.sequence != seq)
+				return false;
+			sample.time_ms = slot.time_ms;
+			sample.run_time = slot.run_time;
+			sample.measured = slot.measured;
+			sample.target = slot.target;
+			sample.duty = slot.duty;
+			sample.status = slot.status;
+			sample.p_term = slot.p_term;
+			sample.i_term = slot.i_term;
+			sample.d_term = slot.d_term;
+			return slot.sequence == seq;
+		}
+	}
+}
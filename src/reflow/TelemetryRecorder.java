@@ -0,0 +1,211 @@
+package reflow;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import reflow.ReflowController.TempStatus;
+
+/**
+ * Appends control loop samples to a compact binary file.
+ * record() only copies the sample into a preallocated ring, a writer thread drains it to the
+ * file in batches. When the writer can't keep up samples are dropped and counted, the caller never blocks.
+ *
+ * File layout, little endian: 8 byte header "RFLT", version (short), record size (short), then records of
+ * wall time ms (long), run time s, measured, target (floats), duty cycle, temp status (bytes), 2 bytes padding,
+ * P, I, D terms (floats).
+ */
+public class TelemetryRecorder implements TelemetryBus.Subscriber {
+
+	static final byte[] MAGIC = {'R', 'F', 'L', 'T'};
+	static final short VERSION = 1;
+	static final int RECORD_SIZE = 36;
+
+	private static final TempStatus[] TEMP_STATUSES = TempStatus.values();
+
+	private final FileChannel channel;
+	private final ByteBuffer ring;
+	private final int capacity;
+	private final AtomicLong head = new AtomicLong();	// Next record to be written by producer
+	private final AtomicLong tail = new AtomicLong();	// Next record to be written to file
+	private final AtomicLong dropped = new AtomicLong();
+	private final long flush_interval_ns;
+
+	private final Thread writer;
+	private volatile boolean closing = false;
+	private volatile IOException error = null;
+
+	public TelemetryRecorder(String filename) throws IOException {
+		this(filename, 4096, 1000);
+	}
+
+	/**
+	 * @param capacity number of records buffered in memory
+	 * @param flush_interval_ms how often written data is forced to disk
+	 */
+	public TelemetryRecorder(String filename, int capacity, long flush_interval_ms) throws IOException {
+		this.capacity = capacity;
+		flush_interval_ns = TimeUnit.MILLISECONDS.toNanos(flush_interval_ms);
+		ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putShort(VERSION).putShort((short)RECORD_SIZE).flip();
+		while (header.hasRemaining())
+			channel.write(header);
+
+		writer = new Thread("reflow-telemetry") {
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue a sample. Must be called from a single thread.
+	 */
+	public void record(long time_ms, double run_time, double measured, double target, int duty,
+			TempStatus status, double p_term, double i_term, double d_term) {
+		long h = head.get();
+		if (h - tail.get() >= capacity || error != null) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		int pos = (int)(h % capacity) * RECORD_SIZE;
+		ring.putLong(pos, time_ms);
+		ring.putFloat(pos + 8, (float)run_time);
+		ring.putFloat(pos + 12, (float)measured);
+		ring.putFloat(pos + 16, (float)target);
+		ring.put(pos + 20, (byte)duty);
+		ring.put(pos + 21, (byte)(status == null ? 0 : status.ordinal()));
+		ring.putShort(pos + 22, (short)0);
+		ring.putFloat(pos + 24, (float)p_term);
+		ring.putFloat(pos + 28, (float)i_term);
+		ring.putFloat(pos + 32, (float)d_term);
+		head.lazySet(h + 1);
+	}
+
+	@Override
+	public void onSample(TelemetrySample s) {
+		record(s.time_ms, s.run_time, s.measured, s.target, s.duty, s.status, s.p_term, s.i_term, s.d_term);
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getRecordCount() {
+		return head.get();
+	}
+
+	/**
+	 * Write out everything queued and close the file.
+	 */
+	public void close() throws IOException {
+		closing = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		if (error != null)
+			throw error;
+	}
+
+	private void drain() {
+		ByteBuffer view = ring.duplicate();
+		long last_flush = System.nanoTime();
+		boolean dirty = false;
+
+		try {
+			while (true) {
+				boolean last = closing;
+				long t = tail.get();
+				long available = head.get() - t;
+
+				while (available > 0) {
+					// Write the contiguous part of the ring, wrap around on the next pass
+					int start = (int)(t % capacity);
+					int n = (int)Math.min(available, capacity - start);
+					view.limit((start + n) * RECORD_SIZE).position(start * RECORD_SIZE);
+					while (view.hasRemaining())
+						channel.write(view);
+					t += n;
+					available -= n;
+					tail.lazySet(t);
+					dirty = true;
+				}
+
+				long now = System.nanoTime();
+				if (dirty && (last || now - last_flush >= flush_interval_ns)) {
+					channel.force(false);
+					last_flush = now;
+					dirty = false;
+				}
+
+				if (last)
+					break;
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+			}
+		} catch (IOException e) {
+			error = e;
+			System.err.println("Error writing telemetry: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Print a telemetry file as CSV.
+	 */
+	public static void dump(String filename, PrintStream out) throws IOException {
+		FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try {
+			ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if (buf.limit() < 8)
+				throw new IOException("Not a telemetry file");
+			byte[] magic = new byte[4];
+			buf.get(magic);
+			if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2] || magic[3] != MAGIC[3])
+				throw new IOException("Not a telemetry file");
+			short version = buf.getShort();
+			int record_size = buf.getShort();
+			if (version != VERSION || record_size < RECORD_SIZE)
+				throw new IOException("Unsupported telemetry version " + version);
+
+			out.println("time_ms,run_time,measured,target,duty,status,p,i,d");
+			for (int pos = 8; pos + record_size <= buf.limit(); pos += record_size) {
+				int status = buf.get(pos + 21);
+				out.format(Locale.ROOT, "%d,%.1f,%.1f,%.1f,%d,%s,%.3f,%.3f,%.3f\n", buf.getLong(pos), buf.getFloat(pos + 8),
+						buf.getFloat(pos + 12), buf.getFloat(pos + 16), buf.get(pos + 20),
+						status >= 0 && status < TEMP_STATUSES.length ? TEMP_STATUSES[status] : "?",
+						buf.getFloat(pos + 24), buf.getFloat(pos + 28), buf.getFloat(pos + 32));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Usage: TelemetryRecorder file.rlog
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TelemetryRecorder <file.rlog>");
+			System.exit(1);
+		}
+		dump(args[0], System.out);
+	}
+}
@@ -0,0 +1,53 @@
+package reflow;
+
+import reflow.ReflowController.TempStatus;
+
+/**
+ * One control step as seen by telemetry consumers. Instances are reused, copy what you need to keep.
+ */
+public class TelemetrySample {
+
+	long time_ms;
+	double run_time;
+	int measured;
+	double target;
+	int duty;
+	TempStatus status;
+	double p_term, i_term, d_term;
+
+	public long getTimeMillis() {
+		return time_ms;
+	}
+
+	public double getRunTime() {
+		return run_time;
+	}
+
+	public int getMeasured() {
+		return measured;
+	}
+
+	public double getTarget() {
+		return target;
+	}
+
+	public int getDutyCycle() {
+		return duty;
+	}
+
+	public TempStatus getTempStatus() {
+		return status;
+	}
+
+	public double getProportionalTerm() {
+		return p_term;
+	}
+
+	public double getIntegralTerm() {
+		return i_term;
+	}
+
+	public double getDerivativeTerm() {
+		return d_term;
+	}
+}
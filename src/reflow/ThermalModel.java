@@ -0,0 +1,114 @@
+package reflow;
+
+import java.util.Properties;
+
+/**
+ * First order plus dead time (FOPDT) model of an oven:
+ * tau * dT/dt = gain * duty(t - dead_time) + ambient - T
+ */
+public class ThermalModel {
+
+	private static final double STEP = 0.1;		// Integration step, s
+	
+	private final double gain;				// Steady state rise, °C per % of duty cycle
+	private final double time_constant;		// s
+	private final double dead_time;			// s
+	private final double ambient;			// °C
+	
+	private final double alpha;
+	private final double[] delay_line;
+	private int delay_pos;
+	private double residual;
+	
+	private double temperature;
+	private double duty;
+
+	public ThermalModel() {
+		this(2.5, 120, 10, 25);
+	}
+	
+	public ThermalModel(double gain, double time_constant, double dead_time, double ambient) {
+		if (time_constant <= 0 || dead_time < 0)
+			throw new IllegalArgumentException("Invalid thermal model parameters");
+		
+		this.gain = gain;
+		this.time_constant = time_constant;
+		this.dead_time = dead_time;
+		this.ambient = ambient;
+		alpha = 1 - Math.exp(-STEP / time_constant);
+		delay_line = new double[Math.max(1, (int)Math.round(dead_time / STEP))];
+		reset();
+	}
+	
+	/**
+	 * Create a model with the same parameters and a fresh state.
+	 */
+	public ThermalModel(ThermalModel other) {
+		this(other.gain, other.time_constant, other.dead_time, other.ambient);
+	}
+	
+	/**
+	 * Model from model.* keys of the configuration, defaults where missing.
+	 */
+	public static ThermalModel fromConfig(Properties config) {
+		ThermalModel def = new ThermalModel();
+		return new ThermalModel(
+				Double.parseDouble(config.getProperty("model.gain", Double.toString(def.gain))),
+				Double.parseDouble(config.getProperty("model.tau", Double.toString(def.time_constant))),
+				Double.parseDouble(config.getProperty("model.dead_time", Double.toString(def.dead_time))),
+				Double.parseDouble(config.getProperty("model.ambient", Double.toString(def.ambient)))
+			);
+	}
+	
+	public void reset() {
+		temperature = ambient;
+		duty = 0;
+		residual = 0;
+		delay_pos = 0;
+		for (int c = 0; c < delay_line.length; c++)
+			delay_line[c] = 0;
+	}
+	
+	public void setDutyCycle(double duty) {
+		this.duty = duty;
+	}
+	
+	public double getDutyCycle() {
+		return duty;
+	}
+	
+	public double getTemperature() {
+		return temperature;
+	}
+	
+	public double getGain() {
+		return gain;
+	}
+
+	public double getTimeConstant() {
+		return time_constant;
+	}
+
+	public double getDeadTime() {
+		return dead_time;
+	}
+
+	public double getAmbient() {
+		return ambient;
+	}
+
+	/**
+	 * Advance model time by the given number of seconds.
+	 */
+	public void advance(double seconds) {
+		residual += seconds;
+		while (residual >= STEP) {
+			double delayed = delay_line[delay_pos];
+			delay_line[delay_pos] = duty;
+			delay_pos = (delay_pos + 1) % delay_line.length;
+			
+			temperature += (gain * delayed + ambient - temperature) * alpha;
+			residual -= STEP;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package reflow;
+
+import java.util.Arrays;
+
+/**
+ * Chronological series kept at several resolutions in fixed size rings, so memory stays bounded
+ * however long a run is. Tier 0 holds the most recent raw samples, every further tier merges
+ * <i>factor</i> entries of the tier below into one, keeping the lowest and highest value with their times.
+ * The coarsest tier never drops data, when full it merges its own entries pairwise.
+ *
+ * Not thread safe.
+ */
+public class TieredSeries {
+
+	public static class Points {
+		public double[] x = new double[256];
+		public double[] y = new double[256];
+		public int size = 0;
+
+		public void clear() {
+			size = 0;
+		}
+
+		void add(double px, double py) {
+			if (size == x.length) {
+				x = Arrays.copyOf(x, size * 2);
+				y = Arrays.copyOf(y, size * 2);
+			}
+			x[size] = px;
+			y[size] = py;
+			size++;
+		}
+	}
+
+	private static class Tier {
+		final double[] start, end;		// Time span of the entry
+		final double[] min_time, min;
+		final double[] max_time, max;
+		int first = 0;					// Ring index of the oldest entry
+		int size = 0;
+		int group;						// Entries of the tier below merged into one entry
+
+		// Entry being built from the tier below
+		int acc_count = 0;
+		double acc_start, acc_end, acc_min_time, acc_min, acc_max_time, acc_max;
+
+		Tier(int capacity, int group) {
+			start = new double[capacity];
+			end = new double[capacity];
+			min_time = new double[capacity];
+			min = new double[capacity];
+			max_time = new double[capacity];
+			max = new double[capacity];
+			this.group = group;
+		}
+
+		int index(int c) {
+			return (first + c) % start.length;
+		}
+
+		void put(int idx, double s, double e, double mn_t, double mn, double mx_t, double mx) {
+			start[idx] = s;
+			end[idx] = e;
+			min_time[idx] = mn_t;
+			min[idx] = mn;
+			max_time[idx] = mx_t;
+			max[idx] = mx;
+		}
+
+		// First entry (0 = oldest) whose end is after t
+		int endingAfter(double t) {
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (end[index(mid)] > t)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			return lo;
+		}
+	}
+
+	private final Tier[] tiers;
+	private final int capacity;
+	private final int factor;
+	private long count = 0;
+	private double min_value = Double.POSITIVE_INFINITY, max_value = Double.NEGATIVE_INFINITY;
+
+	public TieredSeries() {
+		this(2048, 4, 4);
+	}
+
+	/**
+	 * @param capacity entries per tier, even
+	 * @param factor entries merged into one from each tier to the next
+	 * @param levels number of tiers including the raw one
+	 */
+	public TieredSeries(int capacity, int factor, int levels) {
+		if (capacity < 2 * factor || capacity % 2 != 0 || factor < 2 || levels < 1)
+			throw new IllegalArgumentException("Bad tier layout");
+		this.capacity = capacity;
+		this.factor = factor;
+		tiers = new Tier[levels];
+		for (int c = 0; c < levels; c++)
+			tiers[c] = new Tier(capacity, c == 0 ? 1 : factor);
+	}
+
+	public void add(double t, double value) {
+		push(0, t, t, t, value, t, value);
+		count++;
+		min_value = Math.min(min_value, value);
+		max_value = Math.max(max_value, value);
+	}
+
+	public void clear() {
+		for (Tier tier : tiers) {
+			tier.first = 0;
+			tier.size = 0;
+			tier.acc_count = 0;
+			tier.group = tier == tiers[0] ? 1 : factor;
+		}
+		count = 0;
+		min_value = Double.POSITIVE_INFINITY;
+		max_value = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Number of samples added since the last clear().
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public double getFirstTime() {
+		for (int c = tiers.length - 1; c >= 0; c--)
+			if (tiers[c].size > 0)
+				return tiers[c].start[tiers[c].first];
+		return Double.NaN;
+	}
+
+	public double getLastTime() {
+		Tier raw = tiers[0];
+		return raw.size == 0 ? Double.NaN : raw.end[raw.index(raw.size - 1)];
+	}
+
+	public double getMinValue() {
+		return min_value;
+	}
+
+	public double getMaxValue() {
+		return max_value;
+	}
+
+	private void push(int level, double s, double e, double mn_t, double mn, double mx_t, double mx) {
+		Tier tier = tiers[level];
+		if (tier.size == capacity) {
+			if (level == tiers.length - 1)
+				compact(tier);
+			else {
+				// Oldest entry is already merged into the tier above
+				tier.first = (tier.first + 1) % capacity;
+				tier.size--;
+			}
+		}
+		tier.put(tier.index(tier.size), s, e, mn_t, mn, mx_t, mx);
+		tier.size++;
+
+		if (level + 1 == tiers.length)
+			return;
+		Tier up = tiers[level + 1];
+		if (up.acc_count == 0) {
+			up.acc_start = s;
+			up.acc_min_time = mn_t;
+			up.acc_min = mn;
+			up.acc_max_time = mx_t;
+			up.acc_max = mx;
+		} else {
+			if (mn < up.acc_min) {
+				up.acc_min = mn;
+				up.acc_min_time = mn_t;
+			}
+			if (mx > up.acc_max) {
+				up.acc_max = mx;
+				up.acc_max_time = mx_t;
+			}
+		}
+		up.acc_end = e;
+		if (++up.acc_count >= up.group) {
+			up.acc_count = 0;
+			push(level + 1, up.acc_start, up.acc_end, up.acc_min_time, up.acc_min, up.acc_max_time, up.acc_max);
+		}
+	}
+
+	// Merge neighbouring entries of the coarsest tier, halving its resolution
+	private void compact(Tier tier) {
+		for (int c = 0; c < tier.size / 2; c++) {
+			int a = tier.index(2 * c), b = tier.index(2 * c + 1);
+			boolean lower = tier.min[b] < tier.min[a];
+			boolean higher = tier.max[b] > tier.max[a];
+			tier.put(c, tier.start[a], tier.end[b],
+					lower ? tier.min_time[b] : tier.min_time[a], lower ? tier.min[b] : tier.min[a],
+					higher ? tier.max_time[b] : tier.max_time[a], higher ? tier.max[b] : tier.max[a]);
+		}
+		tier.first = 0;
+		tier.size /= 2;
+		tier.group *= 2;
+	}
+
+	/**
+	 * Collect points covering x0..x1 from the finest tier that is sparse enough to give about max_points
+	 * over the range. Older data that tier no longer holds comes from coarser tiers, samples not merged
+	 * into it yet from finer ones. Only entries inside the range are visited.
+	 */
+	public void read(double x0, double x1, int max_points, Points out) {
+		out.clear();
+		int level = tiers.length - 1;
+		for (int c = 0; c < tiers.length; c++) {
+			Tier tier = tiers[c];
+			if (tier.size < 2)
+				continue;
+			double spacing = (tier.end[tier.index(tier.size - 1)] - tier.start[tier.first]) / tier.size;
+			if ((x1 - x0) / spacing * (c == 0 ? 1 : 2) <= max_points) {
+				level = c;
+				break;
+			}
+		}
+
+		double last = Double.NEGATIVE_INFINITY;
+		// Coarser tiers first, each one only up to where the next finer tier starts
+		for (int c = tiers.length - 1; c >= 0; c--) {
+			Tier tier = tiers[c];
+			if (tier.size == 0)
+				continue;
+			double limit = c > level && tiers[c - 1].size > 0 ? tiers[c - 1].start[tiers[c - 1].first] : Double.POSITIVE_INFINITY;
+			for (int e = tier.endingAfter(Math.max(x0, last)); e < tier.size; e++) {
+				int idx = tier.index(e);
+				if (tier.start[idx] > x1 || tier.start[idx] >= limit)
+					break;
+				if (tier.start[idx] <= last)
+					continue;
+				emit(tier, idx, out);
+				last = tier.end[idx];
+			}
+		}
+	}
+
+	private static void emit(Tier tier, int idx, Points out) {
+		double mn_t = tier.min_time[idx], mx_t = tier.max_time[idx];
+		if (mn_t == mx_t)
+			out.add(mn_t, tier.min[idx]);
+		else if (mn_t < mx_t) {
+			out.add(mn_t, tier.min[idx]);
+			out.add(mx_t, tier.max[idx]);
+		} else {
+			out.add(mx_t, tier.max[idx]);
+			out.add(mn_t, tier.min[idx]);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package reflow;
+
+/**
+ * Clock that only moves when advanced explicitly.
+ */
+public class VirtualClock implements Clock {
+
+	private volatile long nanos = 0;
+
+	@Override
+	public long currentTimeMillis() {
+		return nanos / 1000000L;
+	}
+
+	@Override
+	public long nanoTime() {
+		return nanos;
+	}
+
+	public synchronized void advance(long millis) {
+		nanos += millis * 1000000L;
+	}
+
+	public synchronized void advanceNanos(long nanos) {
+		this.nanos += nanos;
+	}
+}